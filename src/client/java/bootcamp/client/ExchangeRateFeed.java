@@ -0,0 +1,43 @@
+package bootcamp.client;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Local stand-in for a market data source: writes a random walk of the Token2 per Token1 rate
+ * to the file named by the oracle node's exchangeRateFile, which the oracle picks up on its next
+ * refresh. Each rate is written to a temporary file and moved over the old one, so the oracle
+ * never reads half a line.
+ *
+ * Run with ./gradlew exchangeRateFeed -PrateFile=/path/to/rate.txt -PrateStart=1.0 -PrateIntervalMs=1000
+ */
+public class ExchangeRateFeed {
+
+    private static final int SCALE = 6;
+    // Largest relative move per update
+    private static final double STEP = 0.002;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path rateFile = Paths.get(System.getProperty("rate.file", "exchange-rate.txt")).toAbsolutePath();
+        BigDecimal rate = new BigDecimal(System.getProperty("rate.start", "1.0"));
+        long intervalMs = Long.getLong("rate.intervalMs", 1000);
+
+        Path temporary = rateFile.resolveSibling(rateFile.getFileName() + ".tmp");
+        Random random = new Random();
+        System.out.println("Writing exchange rates to " + rateFile + " every " + intervalMs + " ms");
+        while (true) {
+            Files.write(temporary, (rate.toPlainString() + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, rateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Thread.sleep(intervalMs);
+            double step = (random.nextDouble() * 2 - 1) * STEP;
+            rate = rate.multiply(BigDecimal.valueOf(1 + step)).setScale(SCALE, RoundingMode.HALF_EVEN);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package bootcamp.client;
+
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.utilities.NetworkHostAndPort;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of RPC connections to one node, handed out round-robin so many flows can be
+ * pipelined over several connections. A connection reported broken is closed and reopened on
+ * its next use, waiting at least reconnectDelay between attempts.
+ */
+public class RpcConnectionPool implements AutoCloseable {
+
+    private final CordaRPCClient client;
+    private final String username;
+    private final String password;
+    private final Duration reconnectDelay;
+    private final List<Slot> slots = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    public RpcConnectionPool(NetworkHostAndPort address, String username, String password, int size) {
+        this(address, username, password, size, Duration.ofSeconds(2));
+    }
+
+    public RpcConnectionPool(NetworkHostAndPort address, String username, String password, int size, Duration reconnectDelay) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        this.client = new CordaRPCClient(address);
+        this.username = username;
+        this.password = password;
+        this.reconnectDelay = reconnectDelay;
+        for (int i = 0; i < size; i++) {
+            slots.add(new Slot());
+        }
+    }
+
+    /**
+     * A connection to submit on, connecting it first if needed.
+     */
+    public Lease lease() {
+        Slot slot = slots.get(Math.floorMod(next.getAndIncrement(), slots.size()));
+        return new Lease(slot, slot.proxy());
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    @Override
+    public void close() {
+        for (Slot slot : slots) {
+            slot.close();
+        }
+    }
+
+    /**
+     * One use of a pooled connection. Call broken() when an RPC on it failed with a connection
+     * error, so the pool reconnects it.
+     */
+    public static class Lease {
+        private final Slot slot;
+        private final CordaRPCOps proxy;
+
+        private Lease(Slot slot, CordaRPCOps proxy) {
+            this.slot = slot;
+            this.proxy = proxy;
+        }
+
+        public CordaRPCOps getProxy() {
+            return proxy;
+        }
+
+        public void broken() {
+            slot.invalidate(proxy);
+        }
+    }
+
+    private class Slot {
+        private CordaRPCConnection connection;
+        private long lastAttemptNanos;
+
+        private synchronized CordaRPCOps proxy() {
+            if (connection == null) {
+                long wait = lastAttemptNanos + reconnectDelay.toNanos() - System.nanoTime();
+                if (lastAttemptNanos != 0 && wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while reconnecting", e);
+                    }
+                }
+                lastAttemptNanos = System.nanoTime();
+                connection = client.start(username, password);
+            }
+            return connection.getProxy();
+        }
+
+        // Only drop the connection the failed proxy came from, another thread may have replaced it already
+        private synchronized void invalidate(CordaRPCOps proxy) {
+            if (connection != null && connection.getProxy() == proxy) {
+                close();
+            }
+        }
+
+        private synchronized void close() {
+            if (connection != null) {
+                try {
+                    connection.forceClose();
+                } finally {
+                    connection = null;
+                }
+            }
+        }
+    }
+}
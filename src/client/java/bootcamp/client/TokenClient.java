@@ -0,0 +1,145 @@
+package bootcamp.client;
+
+import bootcamp.CreateAndShareAccountFlow;
+import bootcamp.CrossTokenSwapFlow;
+import bootcamp.QueryBalanceByAccount;
+import bootcamp.QueryByAccount;
+import bootcamp.TokenDefinition;
+import bootcamp.token1.Token1Definition;
+import bootcamp.token1.TokenFlow;
+import bootcamp.token2.Token2Definition;
+import bootcamp.token2.Token2Flow;
+import net.corda.client.rpc.RPCException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.Party;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Typed, asynchronous access to the token flows of one node. Each call starts the flow on a
+ * pooled connection and returns as soon as the node has accepted it, so many flows are in
+ * flight at once. At most maxInFlight flows run at a time; further calls block until one
+ * finishes, which keeps a fast caller from flooding the node's flow state machine.
+ *
+ * A call that fails with an RPC connection error marks its connection broken, the pool
+ * reconnects it on next use. The failed call itself is not retried, as the flow may have
+ * started before the connection dropped; issue and swap take a requestKey that makes calling
+ * them again safe.
+ */
+public class TokenClient implements AutoCloseable {
+
+    private final RpcConnectionPool pool;
+    private final Semaphore inFlight;
+
+    public TokenClient(RpcConnectionPool pool, int maxInFlight) {
+        this.pool = pool;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public CompletableFuture<String> createAccount(String accountName, List<Party> shareWith) {
+        return start(CreateAndShareAccountFlow.class, accountName, shareWith);
+    }
+
+    public CompletableFuture<String> issue(TokenDefinition<?> token, String issuer, String owner, long amount) {
+        return start(forToken(token, TokenFlow.TokenIssuanceFlow.class, Token2Flow.Token2IssuanceFlow.class),
+                issuer, owner, amount);
+    }
+
+    // Safe to call again with the same requestKey after a timeout, the node issues at most once per key
+    public CompletableFuture<String> issue(TokenDefinition<?> token, String issuer, String owner, long amount, String requestKey) {
+        return start(forToken(token, TokenFlow.TokenIssuanceFlow.class, Token2Flow.Token2IssuanceFlow.class),
+                issuer, owner, amount, requestKey);
+    }
+
+    public CompletableFuture<String> issueBatch(TokenDefinition<?> token, String issuer, List<String> owners, List<Long> amounts, int chunkSize) {
+        return start(forToken(token, TokenFlow.TokenBatchIssuanceFlow.class, Token2Flow.Token2BatchIssuanceFlow.class),
+                issuer, owners, amounts, chunkSize);
+    }
+
+    public CompletableFuture<String> swap(TokenDefinition<?> token, long amount, String owner, String newOwner) {
+        return start(forToken(token, TokenFlow.TokenSwap.class, Token2Flow.Token2Swap.class),
+                amount, owner, newOwner);
+    }
+
+    public CompletableFuture<String> swap(TokenDefinition<?> token, long amount, String owner, String newOwner, String requestKey) {
+        return start(forToken(token, TokenFlow.TokenSwap.class, Token2Flow.Token2Swap.class),
+                amount, owner, newOwner, requestKey);
+    }
+
+    public CompletableFuture<String> merge(TokenDefinition<?> token, String owner, int maxInputs) {
+        return start(forToken(token, TokenFlow.TokenMerge.class, Token2Flow.Token2Merge.class),
+                owner, maxInputs);
+    }
+
+    public CompletableFuture<String> exchange(String account1, long token1Amount, String account2, long token2Amount) {
+        return start(CrossTokenSwapFlow.class, account1, token1Amount, account2, token2Amount);
+    }
+
+    // Token2 amount at the oracle's current rate
+    public CompletableFuture<String> exchange(String account1, long token1Amount, String account2, Party oracle) {
+        return start(CrossTokenSwapFlow.class, account1, token1Amount, account2, oracle);
+    }
+
+    public CompletableFuture<QueryByAccount.AccountTokens> queryByAccount(TokenDefinition<?> token, String account) {
+        return start(forToken(token, QueryByAccount.QueryByAccountToken1.class, QueryByAccount.QueryByAccountToken2.class),
+                account);
+    }
+
+    public CompletableFuture<Map<String, Map<String, Long>>> balances(List<String> accounts) {
+        return start(QueryBalanceByAccount.class, accounts);
+    }
+
+    // Token1Definition selects the token1 flow, Token2Definition the token2 one
+    private static <C> C forToken(TokenDefinition<?> token, C token1Flow, C token2Flow) {
+        if (token == Token1Definition.INSTANCE) return token1Flow;
+        if (token == Token2Definition.INSTANCE) return token2Flow;
+        throw new IllegalArgumentException("Unknown token " + token.getName());
+    }
+
+    private <R> CompletableFuture<R> start(Class<? extends FlowLogic<? extends R>> flowClass, Object... args) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<R> interrupted = new CompletableFuture<>();
+            interrupted.completeExceptionally(e);
+            return interrupted;
+        }
+
+        RpcConnectionPool.Lease lease = null;
+        CompletableFuture<R> result;
+        try {
+            lease = pool.lease();
+            result = lease.getProxy().startFlowDynamic(flowClass, args).getReturnValue().toCompletableFuture()
+                    .thenApply(value -> value);
+        } catch (RuntimeException e) {
+            if (lease != null && e instanceof RPCException) {
+                lease.broken();
+            }
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        RpcConnectionPool.Lease used = lease;
+        return result.whenComplete((value, error) -> {
+            inFlight.release();
+            if (used != null && error != null && isConnectionFailure(error)) {
+                used.broken();
+            }
+        });
+    }
+
+    private static boolean isConnectionFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RPCException) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
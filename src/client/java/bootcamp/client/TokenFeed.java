@@ -0,0 +1,314 @@
+package bootcamp.client;
+
+import bootcamp.AccountToken;
+import bootcamp.TokenDefinition;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.BinaryComparisonOperator;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.ColumnPredicate;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import rx.Subscription;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes TokenState / Token2State produced and consumed events to an RPC client, in place of
+ * polling QueryByAccount. Built on vaultTrackBy, filtered to a set of accounts.
+ *
+ * Events are delivered in batches of up to batchSize, or whatever arrived within maxDelay, on a
+ * dedicated thread, so a slow listener never blocks the RPC client. At most queueCapacity events
+ * wait for the listener; past that the feed stops with FeedOverflowException and the client
+ * resumes from getLastSeen().
+ *
+ * Resuming replays everything recorded or consumed since the given instant, minus resumeOverlap
+ * to absorb clock skew between client and node, so delivery is at-least-once: listeners should
+ * treat (ref, kind) as the event key.
+ */
+public class TokenFeed {
+
+    public enum Kind { PRODUCED, CONSUMED }
+
+    public static class TokenEvent<T extends AccountToken> {
+        private final Kind kind;
+        private final StateAndRef<T> state;
+        private final Instant time;
+
+        public TokenEvent(Kind kind, StateAndRef<T> state, Instant time) {
+            this.kind = kind;
+            this.state = state;
+            this.time = time;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public StateAndRef<T> getState() {
+            return state;
+        }
+
+        public StateRef getRef() {
+            return state.getRef();
+        }
+
+        // Node time the state was recorded or consumed; for live events, when the client received it
+        public Instant getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + state.getRef() + " " + state.getState().getData().getAmount() + " at " + time;
+        }
+    }
+
+    public interface Listener<T extends AccountToken> {
+        void onBatch(List<TokenEvent<T>> events);
+
+        // The feed has stopped; resume with a new subscription from getLastSeen()
+        void onError(Throwable error);
+    }
+
+    public static class FeedOverflowException extends RuntimeException {
+        public FeedOverflowException(int capacity) {
+            super("More than " + capacity + " token events waiting for the listener");
+        }
+    }
+
+    private static final int REPLAY_PAGE_SIZE = 200;
+
+    private final CordaRPCOps proxy;
+    private final int batchSize;
+    private final Duration maxDelay;
+    private final int queueCapacity;
+    private final Duration resumeOverlap;
+
+    public TokenFeed(CordaRPCOps proxy) {
+        this(proxy, 500, Duration.ofMillis(200), 100_000, Duration.ofSeconds(30));
+    }
+
+    public TokenFeed(CordaRPCOps proxy, int batchSize, Duration maxDelay, int queueCapacity, Duration resumeOverlap) {
+        this.proxy = proxy;
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+        this.queueCapacity = queueCapacity;
+        this.resumeOverlap = resumeOverlap;
+    }
+
+    /**
+     * Starts streaming events for the accounts, or for every account when accountIds is empty.
+     * With since set, first replays what happened from then on; with null, only new events
+     * are delivered.
+     */
+    public <T extends AccountToken> Handle<T> subscribe(TokenDefinition<T> definition, Collection<UUID> accountIds,
+                                                        Instant since, Listener<T> listener) {
+        Handle<T> handle = new Handle<>(definition, new HashSet<>(accountIds), listener);
+        handle.start(since);
+        return handle;
+    }
+
+    /**
+     * A running subscription. Close it to stop the feed and its delivery thread.
+     */
+    public class Handle<T extends AccountToken> implements AutoCloseable {
+
+        private final TokenDefinition<T> definition;
+        private final Set<UUID> accountIds;
+        private final Listener<T> listener;
+        private final BlockingQueue<TokenEvent<T>> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final List<TokenEvent<T>> replayed = new ArrayList<>();
+        private final Thread dispatcher;
+
+        private volatile Subscription subscription;
+        private volatile boolean closed;
+        private volatile Throwable failure;
+        private volatile Instant lastSeen;
+        private Duration nodeClockOffset = Duration.ZERO;
+
+        private Handle(TokenDefinition<T> definition, Set<UUID> accountIds, Listener<T> listener) {
+            this.definition = definition;
+            this.accountIds = accountIds;
+            this.listener = listener;
+            this.dispatcher = new Thread(this::dispatch, definition.getName() + "-feed");
+            this.dispatcher.setDaemon(true);
+        }
+
+        private void start(Instant since) {
+            nodeClockOffset = Duration.between(Instant.now(), proxy.currentNodeTime());
+            lastSeen = since;
+
+            // Track first so nothing recorded during the replay is missed, duplicates are dropped below
+            QueryCriteria criteria = replayCriteria(since);
+            Sort sort = new Sort(ImmutableList.of(new Sort.SortColumn(
+                    new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC)));
+            DataFeed<Vault.Page<T>, Vault.Update<T>> feed = proxy.vaultTrackBy(criteria,
+                    new PageSpecification(1, REPLAY_PAGE_SIZE), sort, definition.getStateClass());
+            subscription = feed.getUpdates().subscribe(this::enqueue, this::fail);
+
+            List<TokenEvent<T>> replay = new ArrayList<>();
+            if (since != null) {
+                Instant from = since.minus(resumeOverlap);
+                Vault.Page<T> page = feed.getSnapshot();
+                for (int pageNumber = 1; ; pageNumber++) {
+                    if (pageNumber > 1) {
+                        page = proxy.vaultQueryBy(criteria, new PageSpecification(pageNumber, REPLAY_PAGE_SIZE), sort, definition.getStateClass());
+                    }
+                    addReplayEvents(page, from, replay);
+                    if ((long) pageNumber * REPLAY_PAGE_SIZE >= page.getTotalStatesAvailable()) break;
+                }
+                replay.sort(Comparator.comparing(TokenEvent::getTime));
+            }
+            replayed.addAll(replay);
+            dispatcher.start();
+        }
+
+        // Without a resume point the snapshot is not used, so keep it to one page of unconsumed states
+        private QueryCriteria replayCriteria(Instant since) {
+            QueryCriteria criteria;
+            if (since == null) {
+                criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+            } else {
+                Instant from = since.minus(resumeOverlap);
+                QueryCriteria recorded = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL).withTimeCondition(
+                        new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.RECORDED,
+                                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.GREATER_THAN_OR_EQUAL, from)));
+                QueryCriteria consumed = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL).withTimeCondition(
+                        new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.CONSUMED,
+                                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.GREATER_THAN_OR_EQUAL, from)));
+                criteria = recorded.or(consumed);
+            }
+            if (!accountIds.isEmpty()) {
+                criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.in(
+                        QueryCriteriaUtils.getField("ownerAccountId", definition.getSchemaClass()), new ArrayList<>(accountIds))));
+            }
+            return criteria;
+        }
+
+        private void addReplayEvents(Vault.Page<T> page, Instant from, List<TokenEvent<T>> replay) {
+            for (int i = 0; i < page.getStates().size(); i++) {
+                StateAndRef<T> state = page.getStates().get(i);
+                Vault.StateMetadata metadata = page.getStatesMetadata().get(i);
+                if (!metadata.getRecordedTime().isBefore(from)) {
+                    replay.add(new TokenEvent<>(Kind.PRODUCED, state, metadata.getRecordedTime()));
+                }
+                if (metadata.getConsumedTime() != null && !metadata.getConsumedTime().isBefore(from)) {
+                    replay.add(new TokenEvent<>(Kind.CONSUMED, state, metadata.getConsumedTime()));
+                }
+            }
+        }
+
+        // Runs on the RPC client thread, so it only filters and queues
+        private void enqueue(Vault.Update<T> update) {
+            Instant now = Instant.now().plus(nodeClockOffset);
+            for (StateAndRef<T> state : update.getConsumed()) {
+                offer(Kind.CONSUMED, state, now);
+            }
+            for (StateAndRef<T> state : update.getProduced()) {
+                offer(Kind.PRODUCED, state, now);
+            }
+        }
+
+        private void offer(Kind kind, StateAndRef<T> state, Instant time) {
+            if (!accountIds.isEmpty() && !accountIds.contains(state.getState().getData().getOwnerAccountId())) return;
+            if (!queue.offer(new TokenEvent<>(kind, state, time))) {
+                fail(new FeedOverflowException(queueCapacity));
+            }
+        }
+
+        private void fail(Throwable error) {
+            if (failure == null) {
+                failure = error;
+            }
+        }
+
+        private void dispatch() {
+            Set<String> replayedKeys = new HashSet<>();
+            try {
+                for (int from = 0; from < replayed.size() && !closed; from += batchSize) {
+                    List<TokenEvent<T>> batch = replayed.subList(from, Math.min(from + batchSize, replayed.size()));
+                    for (TokenEvent<T> event : batch) {
+                        replayedKeys.add(key(event));
+                    }
+                    deliver(new ArrayList<>(batch));
+                }
+                replayed.clear();
+
+                List<TokenEvent<T>> batch = new ArrayList<>(batchSize);
+                while (!closed && failure == null) {
+                    TokenEvent<T> first = queue.poll(maxDelay.toMillis(), TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    // Live events already covered by the replay
+                    if (!replayedKeys.isEmpty()) {
+                        batch.removeIf(event -> replayedKeys.contains(key(event)));
+                    }
+                    if (!batch.isEmpty()) {
+                        deliver(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+                if (failure != null && !closed) {
+                    listener.onError(failure);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                listener.onError(e);
+            } finally {
+                unsubscribe();
+            }
+        }
+
+        private void deliver(List<TokenEvent<T>> batch) {
+            listener.onBatch(batch);
+            lastSeen = batch.get(batch.size() - 1).getTime();
+        }
+
+        private String key(TokenEvent<T> event) {
+            return event.getKind() + " " + event.getRef();
+        }
+
+        private void unsubscribe() {
+            Subscription current = subscription;
+            if (current != null) {
+                current.unsubscribe();
+            }
+        }
+
+        /**
+         * Time of the last delivered event, the point to resume from after a reconnect. Until the
+         * first delivery this is the instant the subscription resumed from, or null.
+         */
+        public Instant getLastSeen() {
+            return lastSeen;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            unsubscribe();
+            dispatcher.interrupt();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package bootcamp.benchmarks;
+
+import bootcamp.AccountToken;
+import bootcamp.TokenDefinition;
+import bootcamp.token1.Token1Definition;
+import bootcamp.token2.Token2Definition;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.serialization.internal.SerializationEnvironmentKt;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.internal.InternalSerializationTestHelpersKt;
+import net.corda.testing.node.MockServices;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * In-memory ledger the benchmarks build their transactions against. Issue transactions are
+ * recorded so that Swap transactions can resolve their inputs without a node.
+ */
+class BenchmarkLedger {
+
+    static final TestIdentity NOTARY = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+    static final TestIdentity ISSUER = new TestIdentity(new CordaX500Name("PartyA", "London", "GB"));
+    static final TestIdentity OWNER = new TestIdentity(new CordaX500Name("PartyB", "New York", "US"));
+
+    static final UUID OWNER_ACCOUNT_ID = UUID.randomUUID();
+    static final UUID NEW_OWNER_ACCOUNT_ID = UUID.randomUUID();
+
+    final MockServices services;
+
+    BenchmarkLedger() {
+        initSerialization();
+        services = new MockServices(ImmutableList.of("bootcamp"), ISSUER, OWNER);
+    }
+
+    // Serialization is global to the JVM and normally set up by the node or a test rule
+    static synchronized void initSerialization() {
+        if (SerializationEnvironmentKt.getNodeSerializationEnv() == null) {
+            SerializationEnvironmentKt.setNodeSerializationEnv(InternalSerializationTestHelpersKt.createTestSerializationEnv());
+        }
+    }
+
+    static TokenDefinition<? extends AccountToken> definition(String tokenType) {
+        switch (tokenType) {
+            case "Token1":
+                return Token1Definition.INSTANCE;
+            case "Token2":
+                return Token2Definition.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown token type " + tokenType);
+        }
+    }
+
+    // One output per state, as TokenBatchIssuanceFlow builds them
+    <T extends AccountToken> TransactionBuilder issueBuilder(TokenDefinition<T> definition, int states) {
+        TransactionBuilder transactionBuilder = new TransactionBuilder(NOTARY.getParty());
+        for (int i = 0; i < states; i++) {
+            transactionBuilder.addOutputState(definition.create(ISSUER.getParty(), OWNER.getParty(), OWNER_ACCOUNT_ID, i + 1));
+        }
+        transactionBuilder.addCommand(definition.issueCommand(), ISSUER.getPublicKey(), OWNER.getPublicKey());
+        return transactionBuilder;
+    }
+
+    // Moves every issued state to the new owner, merged into a single output as TokenSwap does
+    <T extends AccountToken> TransactionBuilder swapBuilder(TokenDefinition<T> definition, List<StateAndRef<T>> inputs) {
+        TransactionBuilder transactionBuilder = new TransactionBuilder(NOTARY.getParty());
+        long total = 0;
+        for (StateAndRef<T> input : inputs) {
+            transactionBuilder.addInputState(input);
+            total += input.getState().getData().getAmount();
+        }
+        transactionBuilder.addOutputState(definition.create(ISSUER.getParty(), ISSUER.getParty(), NEW_OWNER_ACCOUNT_ID, total));
+        transactionBuilder.addCommand(definition.swapCommand(), OWNER.getPublicKey(), ISSUER.getPublicKey());
+        return transactionBuilder;
+    }
+
+    LedgerTransaction toLedgerTransaction(TransactionBuilder transactionBuilder) {
+        return transactionBuilder.toWireTransaction(services).toLedgerTransaction(services);
+    }
+
+    // Records the issuance so its outputs can be spent, and returns them
+    <T extends AccountToken> List<StateAndRef<T>> recordIssue(TokenDefinition<T> definition, int states) {
+        SignedTransaction stx = services.signInitialTransaction(issueBuilder(definition, states), ISSUER.getPublicKey());
+        services.recordTransactions(stx);
+        List<StateAndRef<T>> issued = new ArrayList<>();
+        for (int i = 0; i < states; i++) {
+            issued.add(stx.getTx().outRef(i));
+        }
+        return issued;
+    }
+}
@@ -0,0 +1,61 @@
+package bootcamp.benchmarks;
+
+import bootcamp.AccountToken;
+import bootcamp.TokenDefinition;
+import bootcamp.token1.TokenContract;
+import bootcamp.token2.Token2Contract;
+import net.corda.core.contracts.Contract;
+import net.corda.core.transactions.LedgerTransaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenContract / Token2Contract verify() on Issue and Swap transactions of growing size.
+ * The transactions are resolved once per trial, so only the contract rules are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContractVerificationBenchmark {
+
+    @Param({"Token1", "Token2"})
+    public String tokenType;
+
+    @Param({"1", "10", "100"})
+    public int states;
+
+    private Contract contract;
+    private LedgerTransaction issueTransaction;
+    private LedgerTransaction swapTransaction;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        contract = tokenType.equals("Token1") ? new TokenContract() : new Token2Contract();
+        build(BenchmarkLedger.definition(tokenType));
+    }
+
+    private <T extends AccountToken> void build(TokenDefinition<T> definition) {
+        BenchmarkLedger ledger = new BenchmarkLedger();
+        issueTransaction = ledger.toLedgerTransaction(ledger.issueBuilder(definition, states));
+        swapTransaction = ledger.toLedgerTransaction(ledger.swapBuilder(definition, ledger.recordIssue(definition, states)));
+    }
+
+    @Benchmark
+    public void verifyIssue() {
+        contract.verify(issueTransaction);
+    }
+
+    @Benchmark
+    public void verifySwap() {
+        contract.verify(swapTransaction);
+    }
+}
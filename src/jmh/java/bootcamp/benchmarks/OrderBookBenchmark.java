@@ -0,0 +1,72 @@
+package bootcamp.benchmarks;
+
+import bootcamp.OrderBook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OrderBook matching throughput in orders per second, on a stream of random limit orders around
+ * a fixed mid price. spread sets how many price levels each side spreads over, so deeper books
+ * rest more orders per trade. One order in ten cancels an earlier one instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OrderBookBenchmark {
+
+    private static final int STREAM_SIZE = 1 << 16;
+    private static final long MID_PRICE = 10_000;
+    private static final String[] TRADERS = { "trader-0", "trader-1", "trader-2", "trader-3" };
+
+    @Param({"10", "100", "1000"})
+    public int spread;
+
+    private final int[] sides = new int[STREAM_SIZE];
+    private final long[] prices = new long[STREAM_SIZE];
+    private final long[] quantities = new long[STREAM_SIZE];
+    private final String[] owners = new String[STREAM_SIZE];
+    private final boolean[] cancels = new boolean[STREAM_SIZE];
+
+    private OrderBook book;
+    private long orderId;
+    private int next;
+    private long fills;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < STREAM_SIZE; i++) {
+            sides[i] = random.nextBoolean() ? OrderBook.BUY : OrderBook.SELL;
+            // Buys lean below the mid and sells above it, so about half the orders rest
+            long offset = random.nextInt(spread) - spread / 4;
+            prices[i] = sides[i] == OrderBook.BUY ? MID_PRICE - offset : MID_PRICE + offset;
+            quantities[i] = 1 + random.nextInt(100);
+            owners[i] = TRADERS[random.nextInt(TRADERS.length)];
+            cancels[i] = random.nextInt(10) == 0;
+        }
+        book = new OrderBook(STREAM_SIZE, (buyOrderId, buyer, sellOrderId, seller, price, quantity) -> fills++);
+    }
+
+    @Benchmark
+    public void placeOrder(Blackhole blackhole) {
+        int index = next;
+        next = (next + 1) & (STREAM_SIZE - 1);
+        if (cancels[index] && orderId > 0) {
+            // Most of these already traded, which is as much the common case as a hit
+            blackhole.consume(book.cancel(orderId - index % 64));
+            return;
+        }
+        blackhole.consume(book.place(++orderId, sides[index], owners[index], prices[index], quantities[index]));
+    }
+}
@@ -0,0 +1,56 @@
+package bootcamp.benchmarks;
+
+import bootcamp.AccountToken;
+import net.corda.core.serialization.SerializationContext;
+import net.corda.core.serialization.SerializationDefaults;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AMQP round trip of a single TokenState / Token2State in the P2P context, which is what
+ * flows pay for every state they send or check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StateSerializationBenchmark {
+
+    @Param({"Token1", "Token2"})
+    public String tokenType;
+
+    private SerializationFactory factory;
+    private SerializationContext context;
+    private AccountToken state;
+    private SerializedBytes<AccountToken> serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkLedger.initSerialization();
+        factory = SerializationFactory.Companion.getDefaultFactory();
+        context = SerializationDefaults.INSTANCE.getP2P_CONTEXT();
+        state = BenchmarkLedger.definition(tokenType).create(BenchmarkLedger.ISSUER.getParty(), BenchmarkLedger.OWNER.getParty(),
+                BenchmarkLedger.OWNER_ACCOUNT_ID, 10);
+        serialized = factory.serialize(state, context);
+    }
+
+    @Benchmark
+    public SerializedBytes<AccountToken> serialize() {
+        return factory.serialize(state, context);
+    }
+
+    @Benchmark
+    public AccountToken deserialize() {
+        return factory.deserialize(serialized, AccountToken.class, context);
+    }
+}
@@ -0,0 +1,52 @@
+package bootcamp.benchmarks;
+
+import bootcamp.AccountToken;
+import bootcamp.TokenDefinition;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.transactions.WireTransaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of assembling issuance transactions of growing size, with and without resolving
+ * them into a WireTransaction (attachments, component serialization and Merkle root).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransactionBuilderBenchmark {
+
+    @Param({"Token1", "Token2"})
+    public String tokenType;
+
+    @Param({"1", "10", "100"})
+    public int states;
+
+    private BenchmarkLedger ledger;
+    private TokenDefinition<? extends AccountToken> definition;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledger = new BenchmarkLedger();
+        definition = BenchmarkLedger.definition(tokenType);
+    }
+
+    @Benchmark
+    public TransactionBuilder buildIssue() {
+        return ledger.issueBuilder(definition, states);
+    }
+
+    @Benchmark
+    public WireTransaction buildIssueWireTransaction() {
+        return ledger.issueBuilder(definition, states).toWireTransaction(ledger.services);
+    }
+}
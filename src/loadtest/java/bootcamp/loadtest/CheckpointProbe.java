@@ -0,0 +1,200 @@
+package bootcamp.loadtest;
+
+import bootcamp.CreateAndShareAccountFlow;
+import bootcamp.QueryByAccount;
+import bootcamp.token1.TokenFlow;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reports the serialized checkpoint size of the token flows at each suspension point, and fails
+ * when a checkpoint is over the limit or grows with the vault.
+ *
+ * Runs on a MockNetwork without a thread per node, so flows only move on when the probe pumps
+ * the network. After every round it reads the size of each row in the nodes' checkpoint tables;
+ * a new size is the flow having suspended again, two suspensions within one round show as one.
+ * Checkpoints on the starting node are the flow itself, labelled with its current progress step,
+ * the ones on the other node its responders.
+ *
+ * Every flow runs twice, the second time with vaultStates more states in the owner's vault. A
+ * checkpoint above limitKb, or a flow whose largest checkpoint grew by more than 10% with the
+ * vault, fails the run.
+ *
+ * Run with ./gradlew checkpointProbe -PvaultStates=200 -PcheckpointLimitKb=128
+ */
+public class CheckpointProbe {
+
+    private static final double GROWTH_TOLERANCE = 0.10;
+    // A flow still running after this many rounds is stuck
+    private static final int MAX_ROUNDS = 10_000;
+    private static final long AMOUNT = 1_000;
+
+    private final int vaultStates;
+    private final long limitBytes;
+    private final MockNetwork network;
+    private final StartedMockNode nodeA;
+    private final StartedMockNode nodeB;
+    private final List<String> violations = new ArrayList<>();
+    private int accounts;
+
+    public CheckpointProbe(int vaultStates, long limitBytes) {
+        this.vaultStates = vaultStates;
+        this.limitBytes = limitBytes;
+        // Background key fills and reissues would add checkpoints of their own
+        this.network = new MockNetwork(new MockNetworkParameters()
+                .withThreadPerNode(false)
+                .withNetworkSendManuallyPumped(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("bootcamp").withConfig(ImmutableMap.of("accountKeyPoolSize", 0, "reissueChainDepth", 0)),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.ci"))));
+        this.nodeA = network.createNode(new CordaX500Name("PartyA", "London", "GB"));
+        this.nodeB = network.createNode(new CordaX500Name("PartyB", "New York", "US"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int vaultStates = Integer.getInteger("checkpoint.vaultStates", 200);
+        long limitKb = Long.getLong("checkpoint.limitKb", 128);
+
+        CheckpointProbe probe = new CheckpointProbe(vaultStates, limitKb * 1024);
+        try {
+            probe.run();
+        } finally {
+            probe.network.stopNodes();
+        }
+
+        if (!probe.violations.isEmpty()) {
+            System.err.println();
+            for (String violation : probe.violations) {
+                System.err.println(violation);
+            }
+            System.exit(1);
+        }
+    }
+
+    public void run() throws InterruptedException, ExecutionException {
+        Party partyA = nodeA.getInfo().getLegalIdentities().get(0);
+        Party partyB = nodeB.getInfo().getLegalIdentities().get(0);
+        runToEnd(nodeA, new CreateAndShareAccountFlow("issuer", Collections.singletonList(partyB)));
+        runToEnd(nodeA, new CreateAndShareAccountFlow("owner", Collections.singletonList(partyB)));
+        runToEnd(nodeB, new CreateAndShareAccountFlow("receiver", Collections.singletonList(partyA)));
+        issueToOwner(10);
+
+        System.out.println(String.format("%-32s %-10s %-44s %10s", "flow", "point", "at", "bytes"));
+        Map<String, Long> small = probeAll();
+
+        issueToOwner(vaultStates);
+        System.out.println();
+        System.out.println("With " + vaultStates + " more states in the owner's vault");
+        Map<String, Long> large = probeAll();
+
+        System.out.println();
+        System.out.println(String.format("%-32s %12s %12s", "flow", "max bytes", "grown vault"));
+        for (Map.Entry<String, Long> flow : large.entrySet()) {
+            Long before = small.get(flow.getKey());
+            System.out.println(String.format("%-32s %12s %12d", flow.getKey(), before == null ? "-" : before.toString(), flow.getValue()));
+            if (before != null && flow.getValue() > before * (1 + GROWTH_TOLERANCE)) {
+                violations.add(flow.getKey() + " checkpoint grew from " + before + " to " + flow.getValue() + " bytes with "
+                        + vaultStates + " more states in the vault");
+            }
+        }
+    }
+
+    // Largest checkpoint of each flow and of its responders
+    private Map<String, Long> probeAll() throws InterruptedException, ExecutionException {
+        Party partyB = nodeB.getInfo().getLegalIdentities().get(0);
+        Map<String, Long> maxima = new LinkedHashMap<>();
+        probe("CreateAndShareAccountFlow", new CreateAndShareAccountFlow("probe-" + accounts++, Collections.singletonList(partyB)), maxima);
+        probe("TokenIssuanceFlow", new TokenFlow.TokenIssuanceFlow("issuer", "receiver", AMOUNT), maxima);
+        probe("TokenSwap", new TokenFlow.TokenSwap(1, "owner", "receiver"), maxima);
+        probe("TokenMerge", new TokenFlow.TokenMerge("owner", 10), maxima);
+        probe("QueryByAccountToken1", new QueryByAccount.QueryByAccountToken1("owner"), maxima);
+        return maxima;
+    }
+
+    // Runs the flow on node A a network round at a time, recording every new checkpoint size
+    private void probe(String name, FlowLogic<?> flow, Map<String, Long> maxima) throws InterruptedException, ExecutionException {
+        CordaFuture<?> result = nodeA.startFlow(flow);
+        Map<String, Long> lastSizes = new HashMap<>();
+        Map<String, Integer> points = new HashMap<>();
+        for (int round = 0; ; round++) {
+            boolean running = false;
+            for (StartedMockNode node : ImmutableList.of(nodeA, nodeB)) {
+                String label = node == nodeA ? name : name + " responder";
+                for (Map.Entry<String, Long> checkpoint : checkpointSizes(node).entrySet()) {
+                    running = true;
+                    String key = label + "/" + checkpoint.getKey();
+                    long size = checkpoint.getValue();
+                    if (Long.valueOf(size).equals(lastSizes.put(key, size))) continue;
+
+                    int point = points.merge(key, 1, Integer::sum);
+                    String at = node == nodeA ? currentStep(flow) : node.getInfo().getLegalIdentities().get(0).getName().getOrganisation();
+                    System.out.println(String.format("%-32s %-10d %-44s %10d", label, point, at, size));
+                    maxima.merge(label, size, Math::max);
+                    if (size > limitBytes) {
+                        violations.add(label + " checkpoint at " + at + " is " + size + " bytes, over the limit of " + limitBytes);
+                    }
+                }
+            }
+            if (result.isDone() && !running) break;
+            if (round >= MAX_ROUNDS) {
+                throw new IllegalStateException(name + " still running after " + MAX_ROUNDS + " rounds");
+            }
+            network.runNetwork(1);
+        }
+        result.get();
+    }
+
+    private void issueToOwner(int states) throws InterruptedException, ExecutionException {
+        runToEnd(nodeA, new TokenFlow.TokenBatchIssuanceFlow("issuer", Collections.nCopies(states, "owner"),
+                Collections.nCopies(states, AMOUNT), 100));
+    }
+
+    private void runToEnd(StartedMockNode node, FlowLogic<?> flow) throws InterruptedException, ExecutionException {
+        CordaFuture<?> result = node.startFlow(flow);
+        network.runNetwork();
+        result.get();
+    }
+
+    private static String currentStep(FlowLogic<?> flow) {
+        ProgressTracker progressTracker = flow.getProgressTracker();
+        return progressTracker == null ? "-" : progressTracker.getCurrentStep().getLabel();
+    }
+
+    // Serialized size of every checkpoint the node holds, by flow run id
+    private static Map<String, Long> checkpointSizes(StartedMockNode node) {
+        return node.transaction(() -> {
+            Map<String, Long> sizes = new LinkedHashMap<>();
+            try (Statement statement = node.getServices().jdbcSession().createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT checkpoint_id, OCTET_LENGTH(checkpoint_value) FROM node_checkpoints")) {
+                while (rows.next()) {
+                    sizes.put(rows.getString(1), rows.getLong(2));
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Could not read the checkpoints of " + node.getInfo().getLegalIdentities().get(0), e);
+            }
+            return sizes;
+        });
+    }
+}
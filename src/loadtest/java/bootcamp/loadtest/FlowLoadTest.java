@@ -0,0 +1,203 @@
+package bootcamp.loadtest;
+
+import bootcamp.CreateAndShareAccountFlow;
+import bootcamp.QueryByAccount;
+import bootcamp.token1.TokenFlow;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * In-process load test: three nodes and a notary on a MockNetwork, with the accounts and
+ * confidential identity cordapps loaded. Runs CreateAndShareAccountFlow, TokenIssuanceFlow,
+ * TokenSwap and QueryByAccountToken1 in turn at a fixed concurrency and prints flows per second
+ * and p50/p95/p99 latency for each.
+ *
+ * Run with ./gradlew loadTest -Pflows=200 -Pconcurrency=8
+ */
+public class FlowLoadTest {
+
+    // Every owner account starts with this much, swaps move 1 token at a time
+    private static final long OPENING_BALANCE = 1_000_000;
+
+    private final int flows;
+    private final int concurrency;
+    private final MockNetwork network;
+    private final List<StartedMockNode> nodes;
+
+    public FlowLoadTest(int flows, int concurrency) {
+        this.flows = flows;
+        this.concurrency = concurrency;
+        // One thread per node so flows on different nodes really run in parallel
+        this.network = new MockNetwork(new MockNetworkParameters()
+                .withThreadPerNode(true)
+                .withNetworkSendManuallyPumped(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("bootcamp"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.ci"))));
+        this.nodes = ImmutableList.of(
+                network.createNode(new CordaX500Name("PartyA", "London", "GB")),
+                network.createNode(new CordaX500Name("PartyB", "New York", "US")),
+                network.createNode(new CordaX500Name("PartyC", "Lagos", "NG")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int flows = Integer.getInteger("loadtest.flows", 200);
+        int concurrency = Integer.getInteger("loadtest.concurrency", 8);
+
+        FlowLoadTest loadTest = new FlowLoadTest(flows, concurrency);
+        try {
+            loadTest.run();
+        } finally {
+            loadTest.network.stopNodes();
+        }
+    }
+
+    public void run() throws InterruptedException {
+        System.out.println("Running " + flows + " flows of each type at concurrency " + concurrency + " on " + nodes.size() + " nodes");
+
+        // One issuer account per node, plus owner accounts spread over the nodes
+        int owners = Math.min(flows, Math.max(concurrency, nodes.size()));
+        List<String> issuerAccounts = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            issuerAccounts.add("issuer-" + i);
+            startAndWait(nodes.get(i), new CreateAndShareAccountFlow("issuer-" + i, otherParties(i)));
+        }
+
+        List<Report> reports = new ArrayList<>();
+
+        reports.add(measure("CreateAndShareAccountFlow", flows, i -> {
+            int nodeIndex = i % nodes.size();
+            return new Call(nodes.get(nodeIndex), new CreateAndShareAccountFlow("account-" + i, otherParties(nodeIndex)));
+        }));
+
+        // Owners are the first accounts created above, account-i lives on node i % nodes
+        reports.add(measure("TokenIssuanceFlow", flows, i -> {
+            int nodeIndex = i % nodes.size();
+            String owner = "account-" + (i % owners);
+            return new Call(nodes.get(nodeIndex), new TokenFlow.TokenIssuanceFlow(issuerAccounts.get(nodeIndex), owner, OPENING_BALANCE));
+        }));
+
+        // Each swap starts on the owner's host and moves to the next owner
+        reports.add(measure("TokenSwap", flows, i -> {
+            int owner = i % owners;
+            return new Call(nodes.get(owner % nodes.size()), new TokenFlow.TokenSwap(1, "account-" + owner, "account-" + ((owner + 1) % owners)));
+        }));
+
+        reports.add(measure("QueryByAccountToken1", flows, i -> {
+            int owner = i % owners;
+            return new Call(nodes.get(owner % nodes.size()), new QueryByAccount.QueryByAccountToken1("account-" + owner));
+        }));
+
+        System.out.println();
+        System.out.println(Report.HEADER);
+        for (Report report : reports) {
+            System.out.println(report);
+        }
+    }
+
+    private List<Party> otherParties(int nodeIndex) {
+        List<Party> parties = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != nodeIndex) parties.add(nodes.get(i).getInfo().getLegalIdentities().get(0));
+        }
+        return parties;
+    }
+
+    private static Object startAndWait(StartedMockNode node, FlowLogic<?> flow) {
+        try {
+            return node.startFlow(flow).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Setup flow " + flow.getClass().getSimpleName() + " failed", e);
+        }
+    }
+
+    // Runs count calls, at most concurrency at a time, and records the latency of each
+    private Report measure(String name, int count, IntFunction<Call> calls) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long[] latencies = new long[count];
+        AtomicInteger failures = new AtomicInteger();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            executor.submit(() -> {
+                Call call = calls.apply(index);
+                long flowStart = System.nanoTime();
+                try {
+                    call.node.startFlow(call.flow).get();
+                } catch (ExecutionException e) {
+                    failures.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latencies[index] = System.nanoTime() - flowStart;
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+
+        return new Report(name, count, failures.get(), elapsed, latencies);
+    }
+
+    private static class Call {
+        private final StartedMockNode node;
+        private final FlowLogic<?> flow;
+
+        private Call(StartedMockNode node, FlowLogic<?> flow) {
+            this.node = node;
+            this.flow = flow;
+        }
+    }
+
+    private static class Report {
+        private static final String HEADER = String.format("%-28s %8s %8s %10s %10s %10s %10s", "flow", "count", "failed", "flows/s", "p50 ms", "p95 ms", "p99 ms");
+
+        private final String name;
+        private final int count;
+        private final int failures;
+        private final long elapsedNanos;
+        private final long[] sortedLatencies;
+
+        private Report(String name, int count, int failures, long elapsedNanos, long[] latencies) {
+            this.name = name;
+            this.count = count;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencies = latencies.clone();
+            Arrays.sort(sortedLatencies);
+        }
+
+        // Nearest-rank percentile, in milliseconds
+        private double percentile(double p) {
+            if (sortedLatencies.length == 0) return 0;
+            int rank = (int) Math.ceil(p / 100 * sortedLatencies.length);
+            return sortedLatencies[Math.max(rank, 1) - 1] / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            double flowsPerSecond = count * 1_000_000_000.0 / elapsedNanos;
+            return String.format("%-28s %8d %8d %10.1f %10.1f %10.1f %10.1f", name, count, failures, flowsPerSecond,
+                    percentile(50), percentile(95), percentile(99));
+        }
+    }
+}
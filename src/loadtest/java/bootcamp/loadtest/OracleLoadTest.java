@@ -0,0 +1,139 @@
+package bootcamp.loadtest;
+
+import bootcamp.ExchangeRate;
+import bootcamp.ExchangeRateFlow;
+import bootcamp.FlowMetricsService;
+import bootcamp.token1.Token1Definition;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.FilteredTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exchange rate oracle signing throughput: a client node has the oracle node sign distinct
+ * transactions torn off to their rate command, at a fixed concurrency, and prints signatures per
+ * second, p50/p95/p99 round trip latency and the oracle's own time per signature.
+ *
+ * Run with ./gradlew oracleLoadTest -Psignatures=1000 -Pconcurrency=8
+ */
+public class OracleLoadTest {
+
+    private final int signatures;
+    private final int concurrency;
+    private final MockNetwork network;
+    private final StartedMockNode client;
+    private final StartedMockNode oracle;
+
+    public OracleLoadTest(int signatures, int concurrency) {
+        this.signatures = signatures;
+        this.concurrency = concurrency;
+        // Quotes stay signable for the whole run, so only the signing is measured
+        this.network = new MockNetwork(new MockNetworkParameters()
+                .withThreadPerNode(true)
+                .withNetworkSendManuallyPumped(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("bootcamp").withConfig(ImmutableMap.of("exchangeRateValidityMs", 3_600_000)),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.ci"))));
+        this.client = network.createNode(new CordaX500Name("PartyA", "London", "GB"));
+        this.oracle = network.createNode(new CordaX500Name("Oracle", "London", "GB"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int signatures = Integer.getInteger("oracle.signatures", 1000);
+        int concurrency = Integer.getInteger("oracle.concurrency", 8);
+
+        OracleLoadTest loadTest = new OracleLoadTest(signatures, concurrency);
+        try {
+            loadTest.run();
+        } finally {
+            loadTest.network.stopNodes();
+        }
+    }
+
+    public void run() throws InterruptedException, ExecutionException {
+        System.out.println("Requesting " + signatures + " oracle signatures at concurrency " + concurrency);
+
+        Party oracleParty = oracle.getInfo().getLegalIdentities().get(0);
+        ExchangeRate rate = client.startFlow(new ExchangeRateFlow.Query(oracleParty)).get();
+        System.out.println("Rate " + rate);
+
+        // Built up front so the clock only covers the sign flows
+        List<FilteredTransaction> filtered = new ArrayList<>();
+        for (int i = 0; i < signatures; i++) {
+            filtered.add(ExchangeRateFlow.tearOff(quotedTransaction(rate, oracleParty, i + 1), oracleParty.getOwningKey()));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long[] latencies = new long[signatures];
+        AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < signatures; i++) {
+            int index = i;
+            executor.submit(() -> {
+                long flowStart = System.nanoTime();
+                try {
+                    client.startFlow(new ExchangeRateFlow.Sign(oracleParty, filtered.get(index))).get();
+                } catch (ExecutionException e) {
+                    failures.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latencies[index] = System.nanoTime() - flowStart;
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.println();
+        System.out.println(String.format("%8s %8s %12s %10s %10s %10s", "count", "failed", "signatures/s", "p50 ms", "p95 ms", "p99 ms"));
+        System.out.println(String.format("%8d %8d %12.1f %10.1f %10.1f %10.1f", signatures, failures.get(),
+                signatures * 1_000_000_000.0 / elapsed, percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99)));
+
+        System.out.println();
+        for (Map.Entry<String, String> metric : oracle.getServices().cordaService(FlowMetricsService.class).summary().entrySet()) {
+            if (metric.getKey().startsWith("ExchangeRateOracle")) {
+                System.out.println(metric.getKey() + " " + metric.getValue());
+            }
+        }
+    }
+
+    // A Token1 issuance carrying the rate, each with its own amount so every Merkle root differs
+    private SignedTransaction quotedTransaction(ExchangeRate rate, Party oracleParty, long amount) {
+        Party clientParty = client.getInfo().getLegalIdentities().get(0);
+        Party notary = network.getDefaultNotaryIdentity();
+        TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+        transactionBuilder.addOutputState(Token1Definition.INSTANCE.create(clientParty, clientParty, UUID.randomUUID(), amount));
+        transactionBuilder.addCommand(Token1Definition.INSTANCE.issueCommand(), clientParty.getOwningKey());
+        transactionBuilder.addCommand(rate, oracleParty.getOwningKey());
+        return client.transaction(() -> client.getServices().signInitialTransaction(transactionBuilder));
+    }
+
+    // Nearest-rank percentile, in milliseconds
+    private static double percentile(long[] sortedLatencies, double p) {
+        if (sortedLatencies.length == 0) return 0;
+        int rank = (int) Math.ceil(p / 100 * sortedLatencies.length);
+        return sortedLatencies[Math.max(rank, 1) - 1] / 1_000_000.0;
+    }
+}
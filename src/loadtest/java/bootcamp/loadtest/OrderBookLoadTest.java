@@ -0,0 +1,159 @@
+package bootcamp.loadtest;
+
+import bootcamp.CreateAndShareAccountFlow;
+import bootcamp.FlowMetricsService;
+import bootcamp.OrderBookService;
+import bootcamp.OrderFlow;
+import bootcamp.token1.TokenFlow;
+import bootcamp.token2.Token2Flow;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Order book load test on one MockNetwork node: traders holding Token1 and Token2 send random buy
+ * and sell orders through the order flows at a fixed concurrency. Prints orders per second as
+ * accepted by the flows, then waits for every fill to settle and prints the settlement lag, from
+ * match to recorded transaction, and how many fills went into each settlement transaction.
+ *
+ * Run with ./gradlew orderBookLoadTest -Porders=2000 -Pconcurrency=8 -Ptraders=8
+ */
+public class OrderBookLoadTest {
+
+    private static final long OPENING_BALANCE = 1_000_000_000;
+    private static final long MID_PRICE = 100;
+    // Gives up on settlement after this long without a fill settling
+    private static final long SETTLEMENT_TIMEOUT_MS = 60_000;
+
+    private final int orders;
+    private final int concurrency;
+    private final int traders;
+    private final MockNetwork network;
+    private final StartedMockNode node;
+
+    public OrderBookLoadTest(int orders, int concurrency, int traders) {
+        this.orders = orders;
+        this.concurrency = concurrency;
+        this.traders = traders;
+        this.network = new MockNetwork(new MockNetworkParameters()
+                .withThreadPerNode(true)
+                .withNetworkSendManuallyPumped(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("bootcamp"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.ci"))));
+        this.node = network.createNode(new CordaX500Name("PartyA", "London", "GB"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int orders = Integer.getInteger("orderbook.orders", 2000);
+        int concurrency = Integer.getInteger("orderbook.concurrency", 8);
+        int traders = Integer.getInteger("orderbook.traders", 8);
+
+        OrderBookLoadTest loadTest = new OrderBookLoadTest(orders, concurrency, traders);
+        try {
+            loadTest.run();
+        } finally {
+            loadTest.network.stopNodes();
+        }
+    }
+
+    public void run() throws InterruptedException {
+        System.out.println("Placing " + orders + " orders from " + traders + " traders at concurrency " + concurrency);
+
+        startAndWait(new CreateAndShareAccountFlow("issuer", Collections.emptyList()));
+        List<String> accounts = new ArrayList<>();
+        for (int i = 0; i < traders; i++) {
+            accounts.add("trader-" + i);
+            startAndWait(new CreateAndShareAccountFlow("trader-" + i, Collections.emptyList()));
+        }
+        List<Long> balances = Collections.nCopies(traders, OPENING_BALANCE);
+        startAndWait(new TokenFlow.TokenBatchIssuanceFlow("issuer", accounts, balances, 100));
+        startAndWait(new Token2Flow.Token2BatchIssuanceFlow("issuer", accounts, balances, 100));
+
+        // Orders are generated up front so the clock only covers the flows
+        Random random = new Random(42);
+        List<FlowLogic<Long>> flows = new ArrayList<>();
+        for (int i = 0; i < orders; i++) {
+            String trader = accounts.get(random.nextInt(traders));
+            long price = MID_PRICE - 5 + random.nextInt(11);
+            long quantity = 1 + random.nextInt(10);
+            flows.add(random.nextBoolean() ? new OrderFlow.Buy(trader, price, quantity) : new OrderFlow.Sell(trader, price, quantity));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+        for (FlowLogic<Long> flow : flows) {
+            executor.submit(() -> {
+                try {
+                    node.startFlow(flow).get();
+                } catch (ExecutionException e) {
+                    failures.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%d orders placed, %d failed, %.1f orders/s", orders, failures.get(),
+                orders * 1_000_000_000.0 / elapsed));
+
+        OrderBookService orderBook = node.getServices().cordaService(OrderBookService.class);
+        awaitSettlement(orderBook);
+        long settled = System.nanoTime() - start;
+        System.out.println(String.format("Settled %.1f s after the first order", settled / 1_000_000_000.0));
+        System.out.println(orderBook.stats());
+
+        System.out.println();
+        for (Map.Entry<String, String> metric : node.getServices().cordaService(FlowMetricsService.class).summary().entrySet()) {
+            if (metric.getKey().contains("OrderBookService") || metric.getKey().contains("OrderSettlementFlow")) {
+                System.out.println(metric.getKey() + " " + metric.getValue());
+            }
+        }
+    }
+
+    // The matcher publishes its counts every few milliseconds, so nothing left twice in a row means done
+    private static void awaitSettlement(OrderBookService orderBook) throws InterruptedException {
+        int unsettled = orderBook.getUnsettledFills();
+        long lastProgress = System.currentTimeMillis();
+        while (true) {
+            Thread.sleep(100);
+            int now = orderBook.getUnsettledFills();
+            if (now == 0 && unsettled == 0) return;
+            if (now < unsettled) {
+                lastProgress = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastProgress > SETTLEMENT_TIMEOUT_MS) {
+                System.out.println("Gave up waiting with " + now + " fills unsettled");
+                return;
+            }
+            unsettled = now;
+        }
+    }
+
+    private void startAndWait(FlowLogic<?> flow) {
+        try {
+            node.startFlow(flow).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Setup flow " + flow.getClass().getSimpleName() + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package bootcamp;
+
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.accounts.workflows.services.AccountService;
+import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.security.PublicKey;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Node-wide cache of AccountInfo lookups by name, UUID and owning key, so flows don't
+ * pay a vault query every time they resolve an account. Entries are evicted whenever
+ * an AccountInfo state is produced or consumed in the vault.
+ */
+@CordaService
+public class AccountCacheService extends SingletonSerializeAsToken {
+
+    private final AppServiceHub serviceHub;
+
+    private final ConcurrentMap<String, StateAndRef<AccountInfo>> byName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, StateAndRef<AccountInfo>> byId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<PublicKey, StateAndRef<AccountInfo>> byKey = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AccountCacheService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        serviceHub.getVaultService().getUpdates().subscribe(this::invalidate);
+    }
+
+    /**
+     * Returns the first account with this name, as AccountService.accountInfo(name).get(0) would.
+     */
+    public StateAndRef<AccountInfo> accountInfo(String name) {
+        StateAndRef<AccountInfo> account = findAccountInfo(name);
+        if (account == null) {
+            throw new IllegalArgumentException("No account found with name " + name);
+        }
+        return account;
+    }
+
+    /**
+     * Like accountInfo(name), but returns null for an unknown name.
+     */
+    public StateAndRef<AccountInfo> findAccountInfo(String name) {
+        return lookup(byName, name, () -> {
+            List<StateAndRef<AccountInfo>> accounts = accountService().accountInfo(name);
+            return accounts.isEmpty() ? null : accounts.get(0);
+        });
+    }
+
+    public StateAndRef<AccountInfo> accountInfo(UUID id) {
+        return lookup(byId, id, () -> accountService().accountInfo(id));
+    }
+
+    public StateAndRef<AccountInfo> accountInfo(PublicKey owningKey) {
+        return lookup(byKey, owningKey, () -> accountService().accountInfo(owningKey));
+    }
+
+    /**
+     * Seeds the cache with an account this node has just created.
+     */
+    public void prime(StateAndRef<AccountInfo> account) {
+        AccountInfo info = account.getState().getData();
+        byName.put(info.getName(), account);
+        byId.put(info.getIdentifier().getId(), account);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private <K> StateAndRef<AccountInfo> lookup(ConcurrentMap<K, StateAndRef<AccountInfo>> cache, K key, Supplier<StateAndRef<AccountInfo>> loader) {
+        StateAndRef<AccountInfo> account = cache.get(key);
+        if (account != null) {
+            hits.incrementAndGet();
+            return account;
+        }
+        misses.incrementAndGet();
+        // Unknown accounts are not cached, they may be shared with us later
+        account = loader.get();
+        if (account != null) {
+            cache.put(key, account);
+        }
+        return account;
+    }
+
+    private AccountService accountService() {
+        return serviceHub.cordaService(KeyManagementBackedAccountService.class);
+    }
+
+    private void invalidate(Vault.Update<ContractState> update) {
+        update.getConsumed().forEach(this::evict);
+        update.getProduced().forEach(this::evict);
+    }
+
+    private void evict(StateAndRef<ContractState> stateAndRef) {
+        ContractState state = stateAndRef.getState().getData();
+        if (!(state instanceof AccountInfo)) {
+            return;
+        }
+        AccountInfo account = (AccountInfo) state;
+        UUID id = account.getIdentifier().getId();
+        byName.remove(account.getName());
+        byId.remove(id);
+        byKey.values().removeIf(it -> it.getState().getData().getIdentifier().getId().equals(id));
+    }
+}
@@ -0,0 +1,19 @@
+package bootcamp;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+@StartableByRPC
+public class AccountCacheStatsFlow extends FlowLogic<String> {
+
+    @Override
+    @Suspendable
+    public String call() throws FlowException {
+        AccountCacheService accountCache = getServiceHub().cordaService(AccountCacheService.class);
+        AccountKeyPoolService keyPool = getServiceHub().cordaService(AccountKeyPoolService.class);
+        return "Account cache hits: " + accountCache.getHits() + " misses: " + accountCache.getMisses()
+                + "\nAccount key pool hits: " + keyPool.getHits() + " misses: " + keyPool.getMisses();
+    }
+}
@@ -0,0 +1,158 @@
+package bootcamp;
+
+import co.paralleluniverse.fibers.Suspendable;
+import kotlin.Unit;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-generated anonymous keys for the accounts this node hosts, so issuances and swaps take a
+ * fresh owner key from memory instead of generating and registering one on their critical path.
+ * Keys are created with freshKey(accountId), which registers them to the account, by a Fill flow
+ * started in the background whenever an account's pool drops to half.
+ *
+ * Configured through the CorDapp config:
+ * - accountKeyPoolSize: keys kept ready per account, 16 by default; 0 turns the pool off
+ *
+ * The pool is held in memory. Keys still in it when the node stops stay registered to their
+ * account but are never handed out.
+ */
+@CordaService
+public class AccountKeyPoolService extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountKeyPoolService.class);
+
+    private static final String POOL_SIZE_KEY = "accountKeyPoolSize";
+    private static final int DEFAULT_POOL_SIZE = 16;
+
+    private final AppServiceHub serviceHub;
+    private final int poolSize;
+    private final ConcurrentMap<UUID, BlockingQueue<PublicKey>> pools = new ConcurrentHashMap<>();
+    private final Set<UUID> filling = ConcurrentHashMap.newKeySet();
+    // Flows are started from here rather than from the flow that drained the pool
+    private final ExecutorService starter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "account-key-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AccountKeyPoolService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.poolSize = config.exists(POOL_SIZE_KEY) ? config.getInt(POOL_SIZE_KEY) : DEFAULT_POOL_SIZE;
+        // The executor would otherwise outlive the node
+        serviceHub.registerUnloadHandler(() -> {
+            starter.shutdownNow();
+            return Unit.INSTANCE;
+        });
+    }
+
+    /**
+     * A new key of the account hosted here. Taken from the pool, or generated in the calling flow
+     * when the pool is empty; either way the pool is topped up in the background. Must be called
+     * from a flow.
+     */
+    public PublicKey take(UUID accountId) {
+        PublicKey key = poolSize > 0 ? pool(accountId).poll() : null;
+        if (key != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            key = serviceHub.getKeyManagementService().freshKey(accountId);
+        }
+        fill(accountId);
+        return key;
+    }
+
+    /**
+     * Starts filling the account's pool when it is at most half full, e.g. right after the
+     * account is created so its first issuance finds keys waiting.
+     */
+    public void fill(UUID accountId) {
+        if (poolSize == 0) return;
+        int missing = poolSize - pool(accountId).size();
+        if (missing < (poolSize + 1) / 2 || !filling.add(accountId)) return;
+        starter.execute(() -> {
+            try {
+                serviceHub.startFlow(new Fill(accountId, missing)).getReturnValue().toCompletableFuture()
+                        .whenComplete((keys, error) -> {
+                            filling.remove(accountId);
+                            if (error != null) {
+                                logger.warn("Could not fill the key pool of account " + accountId, error);
+                            } else {
+                                pool(accountId).addAll(keys);
+                            }
+                        });
+            } catch (RuntimeException e) {
+                filling.remove(accountId);
+                logger.warn("Could not fill the key pool of account " + accountId, e);
+            }
+        });
+    }
+
+    public int available(UUID accountId) {
+        BlockingQueue<PublicKey> pool = pools.get(accountId);
+        return pool == null ? 0 : pool.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private BlockingQueue<PublicKey> pool(UUID accountId) {
+        return pools.computeIfAbsent(accountId, it -> new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Generates keys for the account. The pool only hands them out once the flow has finished, so
+     * every pooled key is committed to the node's key store.
+     */
+    @StartableByService
+    public static class Fill extends FlowLogic<List<PublicKey>> {
+
+        private final UUID accountId;
+        private final int count;
+
+        public Fill(UUID accountId, int count) {
+            this.accountId = accountId;
+            this.count = count;
+        }
+
+        @Override
+        @Suspendable
+        public List<PublicKey> call() throws FlowException {
+            List<PublicKey> keys = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(getServiceHub().getKeyManagementService().freshKey(accountId));
+            }
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package bootcamp;
+
+import net.corda.core.contracts.ContractState;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+
+import java.util.UUID;
+
+/**
+ * A token held by an account. Implemented by every token type so issuance, swaps and queries
+ * can be written once in TokenEngine.
+ */
+public interface AccountToken extends ContractState {
+
+    Party getIssuer();
+
+    // An anonymous key registered to the owner account; states issued before per-account keys hold the host Party
+    AbstractParty getOwner();
+
+    UUID getOwnerAccountId();
+
+    long getAmount();
+}
@@ -0,0 +1,171 @@
+package bootcamp;
+
+import net.corda.core.contracts.CommandWithParties;
+import net.corda.core.contracts.Contract;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Issue, Swap, Exchange, Settle, Exit and Reissue rules shared by every token contract.
+ */
+public abstract class AccountTokenContract<T extends AccountToken> implements Contract {
+
+    private final Class<T> stateClass;
+    private final Class<? extends TokenCommand> commandsClass;
+
+    protected AccountTokenContract(Class<T> stateClass, Class<? extends TokenCommand> commandsClass) {
+        this.stateClass = stateClass;
+        this.commandsClass = commandsClass;
+    }
+
+    @Override
+    public void verify(LedgerTransaction tx) throws IllegalArgumentException {
+        CommandWithParties<? extends TokenCommand> command = requireSingleCommand(tx.getCommands(), commandsClass);
+
+        List<ContractState> inputs = tx.getInputStates();
+        List<ContractState> outputs = tx.getOutputStates();
+        String stateName = stateClass.getSimpleName();
+
+        if (command.getValue() instanceof TokenCommand.Issue) {
+            requireThat(req -> {
+                req.using("Transaction must have no input states.", inputs.isEmpty());
+                req.using("Transaction must have at least one output.", !outputs.isEmpty());
+                for (ContractState state : outputs) {
+                    req.using("Output must be a " + stateName + ".", stateClass.isInstance(state));
+                    T output = stateClass.cast(state);
+                    req.using("Issuer Account must be required singer.", command.getSigners().contains(output.getIssuer().getOwningKey()));
+                    req.using("Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
+                    req.using("Amount must be positive.", output.getAmount() > 0);
+                }
+                return null;
+            });
+        }
+
+        else if (command.getValue() instanceof TokenCommand.Swap) {
+            // Moves split and merge freely, as long as each issuer's total is unchanged
+            requireThat(req -> {
+                req.using("Transaction must have at least one input.", !inputs.isEmpty());
+                req.using("Transaction must have at least one output.", !outputs.isEmpty());
+                Map<Party, Long> balance = new HashMap<>();
+                for (ContractState state : inputs) {
+                    req.using("Input must be a " + stateName + ".", stateClass.isInstance(state));
+                    T input = stateClass.cast(state);
+                    req.using("Owner Account must be required singer.", command.getSigners().contains(input.getOwner().getOwningKey()));
+                    balance.merge(input.getIssuer(), input.getAmount(), Long::sum);
+                }
+                for (ContractState state : outputs) {
+                    req.using("Output must be a " + stateName + ".", stateClass.isInstance(state));
+                    T output = stateClass.cast(state);
+                    req.using("New Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
+                    req.using("Amount must be positive.", output.getAmount() > 0);
+                    balance.merge(output.getIssuer(), -output.getAmount(), Long::sum);
+                }
+                req.using("Amount must be conserved per issuer.", balance.values().stream().allMatch(it -> it == 0));
+                return null;
+            });
+        }
+
+        else if (command.getValue() instanceof TokenCommand.Exchange) {
+            // Only this contract's leg is checked here, the other token's contract checks its own leg: one seller's
+            // states pay the account selling the other token, and whatever is left goes back to the seller as change
+            List<T> tokenInputs = tx.inputsOfType(stateClass);
+            List<T> tokenOutputs = tx.outputsOfType(stateClass);
+            List<AccountToken> otherInputs = new ArrayList<>();
+            for (AccountToken input : tx.inputsOfType(AccountToken.class)) {
+                if (!stateClass.isInstance(input)) otherInputs.add(input);
+            }
+            requireThat(req -> {
+                req.using("Exchange must consume at least one " + stateName + ".", !tokenInputs.isEmpty());
+                req.using("Exchange must consume another token in return.", !otherInputs.isEmpty());
+                UUID seller = tokenInputs.get(0).getOwnerAccountId();
+                UUID buyer = otherInputs.get(0).getOwnerAccountId();
+                req.using("Exchange must be between two accounts.", !seller.equals(buyer));
+                Map<Party, Long> balance = new HashMap<>();
+                for (T input : tokenInputs) {
+                    req.using("Exchange must consume the " + stateName + " of one account.", input.getOwnerAccountId().equals(seller));
+                    req.using("Owner Account must be required singer.", command.getSigners().contains(input.getOwner().getOwningKey()));
+                    balance.merge(input.getIssuer(), input.getAmount(), Long::sum);
+                }
+                long paid = 0;
+                for (T output : tokenOutputs) {
+                    req.using("Output must pay the other seller or return change.",
+                            output.getOwnerAccountId().equals(buyer) || output.getOwnerAccountId().equals(seller));
+                    req.using("New Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
+                    req.using("Amount must be positive.", output.getAmount() > 0);
+                    balance.merge(output.getIssuer(), -output.getAmount(), Long::sum);
+                    if (output.getOwnerAccountId().equals(buyer)) paid += output.getAmount();
+                }
+                req.using("Exchange must pay the other seller.", paid > 0);
+                req.using("Amount must be conserved per issuer.", balance.values().stream().allMatch(it -> it == 0));
+                return null;
+            });
+        }
+
+        else if (command.getValue() instanceof TokenCommand.Settle) {
+            // Like Swap, but only this contract's states are checked, the other token's contract checks its own leg
+            List<T> tokenInputs = tx.inputsOfType(stateClass);
+            List<T> tokenOutputs = tx.outputsOfType(stateClass);
+            requireThat(req -> {
+                req.using("Settlement must consume at least one " + stateName + ".", !tokenInputs.isEmpty());
+                req.using("Settlement must produce at least one " + stateName + ".", !tokenOutputs.isEmpty());
+                Map<Party, Long> balance = new HashMap<>();
+                for (T input : tokenInputs) {
+                    req.using("Owner Account must be required singer.", command.getSigners().contains(input.getOwner().getOwningKey()));
+                    balance.merge(input.getIssuer(), input.getAmount(), Long::sum);
+                }
+                for (T output : tokenOutputs) {
+                    req.using("New Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
+                    req.using("Amount must be positive.", output.getAmount() > 0);
+                    balance.merge(output.getIssuer(), -output.getAmount(), Long::sum);
+                }
+                req.using("Amount must be conserved per issuer.", balance.values().stream().allMatch(it -> it == 0));
+                return null;
+            });
+        }
+
+        else if (command.getValue() instanceof TokenCommand.Exit) {
+            // Retires states ahead of their reissue, owner and issuer both have to agree
+            requireThat(req -> {
+                req.using("Transaction must have at least one input.", !inputs.isEmpty());
+                req.using("Transaction must have no output states.", outputs.isEmpty());
+                for (ContractState state : inputs) {
+                    req.using("Input must be a " + stateName + ".", stateClass.isInstance(state));
+                    T input = stateClass.cast(state);
+                    req.using("Issuer Account must be required singer.", command.getSigners().contains(input.getIssuer().getOwningKey()));
+                    req.using("Owner Account must be required singer.", command.getSigners().contains(input.getOwner().getOwningKey()));
+                }
+                return null;
+            });
+        }
+
+        else if (command.getValue() instanceof TokenCommand.Reissue) {
+            // The issuer signs only after checking the outputs against the exit transaction
+            TokenCommand.Reissue reissue = (TokenCommand.Reissue) command.getValue();
+            requireThat(req -> {
+                req.using("Reissue must name the exit transaction.", reissue.getExitTxId() != null);
+                req.using("Transaction must have no input states.", inputs.isEmpty());
+                req.using("Transaction must have at least one output.", !outputs.isEmpty());
+                for (ContractState state : outputs) {
+                    req.using("Output must be a " + stateName + ".", stateClass.isInstance(state));
+                    T output = stateClass.cast(state);
+                    req.using("Issuer Account must be required singer.", command.getSigners().contains(output.getIssuer().getOwningKey()));
+                    req.using("Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
+                    req.using("Amount must be positive.", output.getAmount() > 0);
+                }
+                return null;
+            });
+        } else {
+            throw new IllegalArgumentException("Unrecognized command");
+        }
+    }
+}
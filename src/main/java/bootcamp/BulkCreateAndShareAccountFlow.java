@@ -0,0 +1,118 @@
+package bootcamp;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.accounts.workflows.flows.CreateAccount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.StatesToRecord;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Creates many accounts and shares them in one session per party, instead of one
+ * CreateAndShareAccountFlow and one ShareAccountInfo broadcast per account.
+ *
+ * Re-running with the same names is safe: names already hosted here are not created again but
+ * are shared again, which repairs a run that failed part way through sharing. Names hosted by
+ * another node are skipped.
+ */
+@StartableByRPC
+@InitiatingFlow
+public class BulkCreateAndShareAccountFlow extends FlowLogic<String> {
+
+    // Keeps the list of created accounts, which is part of every checkpoint, to a sane size
+    public static final int MAX_NAMES_PER_RUN = 1000;
+    // Accounts sent to a party per message
+    private static final int SHARE_BATCH_SIZE = 200;
+
+    private final List<String> accountNames;
+    private final List<Party> partyToShareAccountInfoToList;
+
+    public BulkCreateAndShareAccountFlow(List<String> accountNames, List<Party> partyToShareAccountInfoToList) {
+        this.accountNames = accountNames;
+        this.partyToShareAccountInfoToList = partyToShareAccountInfoToList;
+    }
+
+    @Override
+    @Suspendable
+    public String call() throws FlowException {
+        if (accountNames.size() > MAX_NAMES_PER_RUN) {
+            throw new FlowException("At most " + MAX_NAMES_PER_RUN + " accounts per run, split the list into several runs");
+        }
+        AccountCacheService accountCache = getServiceHub().cordaService(AccountCacheService.class);
+
+        List<StateAndRef<AccountInfo>> toShare = new ArrayList<>();
+        int created = 0;
+        int skipped = 0;
+        for (String name : new LinkedHashSet<>(accountNames)) {
+            StateAndRef<AccountInfo> existing = accountCache.findAccountInfo(name);
+            if (existing != null) {
+                if (existing.getState().getData().getHost().equals(getOurIdentity())) {
+                    toShare.add(existing);
+                }
+                skipped++;
+                continue;
+            }
+            //Call inbuilt CreateAccount flow to create the AccountInfo object
+            StateAndRef<AccountInfo> account = (StateAndRef<AccountInfo>) subFlow(new CreateAccount(name));
+            accountCache.prime(account);
+            toShare.add(account);
+            created++;
+        }
+
+        //Share the accounts with each party over a single session, a batch per message
+        for (Party party : partyToShareAccountInfoToList) {
+            if (party.equals(getOurIdentity())) continue;
+            FlowSession session = initiateFlow(party);
+            for (int from = 0; from < toShare.size(); from += SHARE_BATCH_SIZE) {
+                session.send(true);
+                List<StateAndRef<?>> batch = new ArrayList<>(toShare.subList(from, Math.min(from + SHARE_BATCH_SIZE, toShare.size())));
+                subFlow(new SendStateAndRefFlow(session, batch));
+            }
+            session.send(false);
+        }
+
+        return created + " accounts created, " + skipped + " already existed, " + toShare.size() + " shared to "
+                + partyToShareAccountInfoToList + ".";
+    }
+
+    @InitiatedBy(BulkCreateAndShareAccountFlow.class)
+    public static class Responder extends FlowLogic<Void> {
+
+        private final FlowSession otherSide;
+
+        public Responder(FlowSession otherSide) {
+            this.otherSide = otherSide;
+        }
+
+        @Override
+        @Suspendable
+        public Void call() throws FlowException {
+            // Each batch is announced with true, the end of the share with false
+            while (otherSide.receive(Boolean.class).unwrap(it -> it)) {
+                // Resolves the creating transactions of the whole batch, then records them so the accounts land in our vault
+                List<StateAndRef<AccountInfo>> accounts = subFlow(new ReceiveStateAndRefFlow<>(otherSide));
+                Set<SecureHash> txIds = new LinkedHashSet<>();
+                for (StateAndRef<AccountInfo> account : accounts) {
+                    if (!account.getState().getData().getHost().equals(otherSide.getCounterparty())) {
+                        throw new FlowException("Only accounts hosted by " + otherSide.getCounterparty() + " can be shared by it");
+                    }
+                    txIds.add(account.getRef().getTxhash());
+                }
+                List<SignedTransaction> transactions = new ArrayList<>();
+                for (SecureHash txId : txIds) {
+                    transactions.add(getServiceHub().getValidatedTransactions().getTransaction(txId));
+                }
+                getServiceHub().recordTransactions(StatesToRecord.ALL_VISIBLE, transactions);
+            }
+            return null;
+        }
+    }
+}
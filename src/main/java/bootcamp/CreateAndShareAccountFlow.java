@@ -32,6 +32,12 @@ public class CreateAndShareAccountFlow extends FlowLogic<String> {
         //Call inbuilt CreateAccount flow to create the AccountInfo object
         StateAndRef<AccountInfo> accountInfoStateAndRef = (StateAndRef<AccountInfo>) subFlow(new CreateAccount(accountName));
 
+        //Seed the account cache so the first issuance or swap for this account skips the vault lookup
+        getServiceHub().cordaService(AccountCacheService.class).prime(accountInfoStateAndRef);
+
+        //Start generating the account's owner keys now, so its first issuance finds them ready
+        getServiceHub().cordaService(AccountKeyPoolService.class).fill(accountInfoStateAndRef.getState().getData().getIdentifier().getId());
+
         //Share this AccountInfo object with the parties who want to transact with this account
         subFlow(new ShareAccountInfo(accountInfoStateAndRef, partyToShareAccountInfoToList));
         return "" + accountName +"has been created and shared to " +partyToShareAccountInfoToList+".";
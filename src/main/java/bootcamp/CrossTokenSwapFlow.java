@@ -0,0 +1,359 @@
+package bootcamp;
+
+import bootcamp.token1.Token1Definition;
+import bootcamp.token1.TokenState;
+import bootcamp.token2.Token2Definition;
+import bootcamp.token2.Token2State;
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Atomically exchanges Token1 of account1 for Token2 of account2 in a single transaction. Each
+ * leg spends as many of the seller's states as it needs and returns the rest to the seller as
+ * change. Must be started on the node hosting account1; the Token2 states are fetched from the
+ * node hosting account2 when they are not in our vault.
+ *
+ * Given an oracle instead of a Token2 amount, the Token2 amount is the Token1 amount at the
+ * oracle's current rate. The rate goes into the transaction as an ExchangeRate command, which the
+ * oracle signs seeing only that command, and Token2Contract holds the exchange to it. An exchange
+ * with an account on another node must be priced this way: its host hands over Token2 only at
+ * the rate of the oracle it trusts, the one price its owner has agreed to.
+ */
+@InitiatingFlow
+@StartableByRPC
+public class CrossTokenSwapFlow extends FlowLogic<String> {
+
+    private final String account1;
+    private final long token1Amount;
+    private final String account2;
+    private final long token2Amount;
+    private final Party oracle;
+
+    public CrossTokenSwapFlow(String account1, long token1Amount, String account2, long token2Amount) {
+        this.account1 = account1;
+        this.token1Amount = token1Amount;
+        this.account2 = account2;
+        this.token2Amount = token2Amount;
+        this.oracle = null;
+    }
+
+    public CrossTokenSwapFlow(String account1, long token1Amount, String account2, Party oracle) {
+        this.account1 = account1;
+        this.token1Amount = token1Amount;
+        this.account2 = account2;
+        this.token2Amount = 0;
+        this.oracle = oracle;
+    }
+
+    @Suspendable
+    @Override
+    public String call() throws FlowException {
+
+        AccountInfo account1Info = getServiceHub().cordaService(AccountCacheService.class).accountInfo(account1).getState().getData();
+        AccountInfo account2Info = getServiceHub().cordaService(AccountCacheService.class).accountInfo(account2).getState().getData();
+
+        Party account1Host = account1Info.getHost();
+        Party account2Host = account2Info.getHost();
+
+        if (!account1Host.equals(getOurIdentity())) {
+            throw new FlowException("Cross token swap must be started on the node hosting " + account1);
+        }
+
+        ExchangeRate rate = null;
+        long token2Amount = this.token2Amount;
+        if (oracle != null) {
+            // Signing the rate ourselves would attest it without the oracle's check
+            if (oracle.equals(getOurIdentity())) {
+                throw new FlowException("The exchange rate oracle must be another node");
+            }
+            rate = subFlow(new ExchangeRateFlow.Query(oracle));
+            token2Amount = rate.token2For(token1Amount);
+        }
+        // Nobody on the other node has agreed to a price we name ourselves
+        if (!account2Host.equals(getOurIdentity()) && rate == null) {
+            throw new FlowException("An exchange with " + account2 + " on another node must be priced by an oracle");
+        }
+
+        // Inputs are soft locked under this flow's run id, largest first; the node releases them if the flow fails
+        UUID account1Id = account1Info.getIdentifier().getId();
+        UUID account2Id = account2Info.getIdentifier().getId();
+        List<StateAndRef<TokenState>> token1Inputs = TokenEngine.lockStates(getServiceHub(), Token1Definition.INSTANCE,
+                account1Id, getRunId().getUuid(), Sort.Direction.DESC, token1Amount, Integer.MAX_VALUE);
+        if (token1Inputs.isEmpty() || total(token1Inputs) < token1Amount) {
+            throw new FlowException("Unlocked Token1 balance of " + account1 + " is " + total(token1Inputs) + ", below " + token1Amount);
+        }
+        // Both legs must be notarised together
+        Party notary = token1Inputs.get(0).getState().getNotary();
+
+        // The counterparty hands over its Token2 states when they are not already in our vault
+        FlowSession counterpartySession = null;
+        List<StateAndRef<Token2State>> token2Inputs;
+        if (account2Host.equals(getOurIdentity())) {
+            token2Inputs = TokenEngine.lockStates(getServiceHub(), Token2Definition.INSTANCE,
+                    account2Id, getRunId().getUuid(), Sort.Direction.DESC, token2Amount, Integer.MAX_VALUE, notary);
+        } else {
+            counterpartySession = initiateFlow(account2Host);
+            counterpartySession.send(true);
+            counterpartySession.send(account2Id);
+            counterpartySession.send(token2Amount);
+            counterpartySession.send(token1Amount);
+            counterpartySession.send(rate);
+            counterpartySession.send(notary);
+            token2Inputs = subFlow(new ReceiveStateAndRefFlow<Token2State>(counterpartySession));
+        }
+        if (token2Inputs.isEmpty() || total(token2Inputs) < token2Amount) {
+            throw new FlowException("Unlocked Token2 balance of " + account2 + " on " + notary + " is below " + token2Amount);
+        }
+        for (StateAndRef<Token2State> input : token2Inputs) {
+            if (!notary.equals(input.getState().getNotary())) {
+                throw new FlowException("Token1 and Token2 states are assigned to different notaries");
+            }
+            // We only learn the counterparty's owner keys from its states; it must sign for them, so a wrong key fails the exchange
+            PublicKey token2OwnerKey = input.getState().getData().getOwner().getOwningKey();
+            if (getServiceHub().getIdentityService().partyFromKey(token2OwnerKey) == null) {
+                getServiceHub().getIdentityService().registerKey(token2OwnerKey, account2Host, account2Id);
+            }
+        }
+
+        // Each account receives under a fresh key of its own
+        Map<UUID, AnonymousParty> ownerKeys = TokenEngine.ownerKeys(this, ImmutableList.of(account1Info, account2Info));
+
+        // Sign with every owner key we hold, all of them when both accounts are hosted here
+        SignedTransaction selfSignedTransaction = TokenEngine.verifyAndSign(this, exchangeBuilder(notary, token1Inputs, token1Amount,
+                token2Inputs, token2Amount, account1Id, account2Id, ownerKeys, rate, oracle));
+        List<PublicKey> ourKeys = new ArrayList<>();
+        for (TransactionSignature signature : selfSignedTransaction.getSigs()) {
+            ourKeys.add(signature.getBy());
+        }
+        if (oracle != null) {
+            selfSignedTransaction = selfSignedTransaction.withAdditionalSignature(subFlow(new ExchangeRateFlow.Sign(oracle,
+                    ExchangeRateFlow.tearOff(selfSignedTransaction, oracle.getOwningKey()))));
+        }
+
+        List<FlowSession> signerSessions = counterpartySession == null
+                ? Collections.emptyList()
+                : Collections.singletonList(counterpartySession);
+        final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(selfSignedTransaction, signerSessions, ourKeys));
+
+        // The issuers only record the exchange
+        List<FlowSession> sessions = new ArrayList<>(signerSessions);
+        Set<Party> issuers = new LinkedHashSet<>();
+        for (StateAndRef<TokenState> input : token1Inputs) issuers.add(input.getState().getData().getIssuer());
+        for (StateAndRef<Token2State> input : token2Inputs) issuers.add(input.getState().getData().getIssuer());
+        for (Party issuer : issuers) {
+            if (issuer.equals(getOurIdentity()) || issuer.equals(account2Host)) continue;
+            FlowSession issuerSession = initiateFlow(issuer);
+            issuerSession.send(false);
+            sessions.add(issuerSession);
+        }
+
+        SignedTransaction stx = subFlow(new FinalityFlow(fullySignedTx, sessions));
+        afterRecording(this, stx);
+
+        return "Cross token swap successful. " + token1Amount + " Token1 from " + account1 + " exchanged for "
+                + token2Amount + " Token2 from " + account2 + "\ntxId: " + stx.getId();
+    }
+
+    // Each leg pays the other account, at the oracle's rate when there is one, and returns the rest of its inputs to
+    // the seller as change; built outside call() so the builder is not part of its checkpoints
+    private static TransactionBuilder exchangeBuilder(Party notary, List<StateAndRef<TokenState>> token1Inputs, long token1Amount,
+                                                      List<StateAndRef<Token2State>> token2Inputs, long token2Amount,
+                                                      UUID account1Id, UUID account2Id, Map<UUID, AnonymousParty> ownerKeys,
+                                                      ExchangeRate rate, Party oracle) {
+        AnonymousParty account1Key = ownerKeys.get(account1Id);
+        AnonymousParty account2Key = ownerKeys.get(account2Id);
+
+        TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+        Set<PublicKey> token1Signers = new LinkedHashSet<>();
+        for (StateAndRef<TokenState> input : token1Inputs) {
+            transactionBuilder.addInputState(input);
+            token1Signers.add(input.getState().getData().getOwner().getOwningKey());
+        }
+        Set<PublicKey> token2Signers = new LinkedHashSet<>();
+        for (StateAndRef<Token2State> input : token2Inputs) {
+            transactionBuilder.addInputState(input);
+            token2Signers.add(input.getState().getData().getOwner().getOwningKey());
+        }
+        for (TokenState output : TokenEngine.payWithChange(Token1Definition.INSTANCE, token1Inputs, token1Amount,
+                account2Key, account2Id, account1Key, account1Id)) {
+            transactionBuilder.addOutputState(output);
+        }
+        for (Token2State output : TokenEngine.payWithChange(Token2Definition.INSTANCE, token2Inputs, token2Amount,
+                account1Key, account1Id, account2Key, account2Id)) {
+            transactionBuilder.addOutputState(output);
+        }
+        // Output owners sign their leg alongside the sellers
+        token1Signers.add(account1Key.getOwningKey());
+        token1Signers.add(account2Key.getOwningKey());
+        token2Signers.add(account1Key.getOwningKey());
+        token2Signers.add(account2Key.getOwningKey());
+        transactionBuilder.addCommand(Token1Definition.INSTANCE.exchangeCommand(), new ArrayList<>(token1Signers));
+        transactionBuilder.addCommand(Token2Definition.INSTANCE.exchangeCommand(), new ArrayList<>(token2Signers));
+        if (rate != null) {
+            transactionBuilder.addCommand(rate, oracle.getOwningKey());
+        }
+        return transactionBuilder;
+    }
+
+    private static <T extends AccountToken> long total(List<StateAndRef<T>> states) {
+        long total = 0;
+        for (StateAndRef<T> state : states) {
+            total += state.getState().getData().getAmount();
+        }
+        return total;
+    }
+
+    @InitiatedBy(CrossTokenSwapFlow.class)
+    public static class Responder extends FlowLogic<Void> {
+
+        private final FlowSession otherSide;
+
+        public Responder(FlowSession otherSide) {
+            this.otherSide = otherSide;
+        }
+
+        @Override
+        @Suspendable
+        public Void call() throws FlowException {
+
+            // The counterparty supplies its Token2 states and signs, issuers only record the exchange
+            boolean counterparty = otherSide.receive(Boolean.class).unwrap(it -> it);
+            if (counterparty) {
+                UUID accountId = otherSide.receive(UUID.class).unwrap(it -> it);
+                long amount = otherSide.receive(Long.class).unwrap(it -> it);
+                long token1Amount = otherSide.receive(Long.class).unwrap(it -> it);
+                ExchangeRate rate = otherSide.receive(ExchangeRate.class).unwrap(it -> it);
+                checkRequest(accountId, amount, token1Amount, rate);
+
+                Party notary = otherSide.receive(Party.class).unwrap(it -> it);
+
+                // Enough of the account's Token2 on the initiator's notary, the change comes back to it
+                List<StateAndRef<Token2State>> token2Inputs = TokenEngine.lockStates(getServiceHub(), Token2Definition.INSTANCE,
+                        accountId, getRunId().getUuid(), Sort.Direction.DESC, amount, Integer.MAX_VALUE, notary);
+                long handedOverTotal = total(token2Inputs);
+                if (handedOverTotal < amount) {
+                    TokenEngine.releaseStates(getServiceHub(), getRunId().getUuid(), token2Inputs);
+                    token2Inputs = Collections.emptyList();
+                }
+                subFlow(new SendStateAndRefFlow(otherSide, new ArrayList<>(token2Inputs)));
+                if (token2Inputs.isEmpty()) {
+                    return null;
+                }
+
+                Set<StateRef> handedOver = new LinkedHashSet<>();
+                for (StateAndRef<Token2State> input : token2Inputs) {
+                    handedOver.add(input.getRef());
+                }
+                subFlow(new SignTransactionFlow(otherSide) {
+                    @Override
+                    protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
+                        checkExchange(Responder.this, stx, accountId, token1Amount, rate, handedOver, handedOverTotal - amount);
+                    }
+                });
+            }
+            afterRecording(this, subFlow(new ReceiveFinalityFlow(otherSide)));
+
+            return null;
+        }
+
+        // Only accounts hosted here can sell, only amounts a proposal could carry, and only at the trusted oracle's
+        // rate: account2's owner never sees the request, so that rate is the only price it has agreed to
+        private void checkRequest(UUID accountId, long amount, long token1Amount, ExchangeRate rate) throws FlowException {
+            StateAndRef<AccountInfo> account = getServiceHub().cordaService(AccountCacheService.class).accountInfo(accountId);
+            if (account == null || !account.getState().getData().getHost().equals(getOurIdentity())) {
+                throw new FlowException("Account " + accountId + " is not hosted by this node");
+            }
+            long maxAmount = TokenEngine.maxAmount(getServiceHub());
+            if (amount <= 0 || amount > maxAmount || token1Amount <= 0 || token1Amount > maxAmount) {
+                throw new FlowException("Amounts " + amount + " and " + token1Amount + " must be within 1.." + maxAmount);
+            }
+            if (!getServiceHub().cordaService(ExchangeRateOracle.class).trusts(rate.getOracle())) {
+                throw new FlowException("Exchange is priced by untrusted oracle " + rate.getOracle());
+            }
+            if (rate.getRate().signum() <= 0 || amount != rate.token2For(token1Amount)) {
+                throw new FlowException(amount + " Token2 for " + token1Amount + " Token1 is not the price at " + rate);
+            }
+        }
+    }
+
+    /**
+     * Checks the counterparty runs before signing: the rate it agreed to as the exchange's only
+     * rate, the shared proposal checks with our Token2 states as the only states we hand over, no
+     * other input of ours, Token1 paying at least the agreed amount to keys of the account we sold
+     * from, and the Token2 change coming back to it.
+     */
+    private static void checkExchange(FlowLogic<?> responder, SignedTransaction stx, UUID accountId, long token1Amount,
+                                      ExchangeRate rate, Set<StateRef> handedOver, long change) throws FlowException {
+        ServiceHub serviceHub = responder.getServiceHub();
+        // The contract holds the Token2 leg to this rate, so it must be the one checked in checkRequest
+        List<CommandData> expectedCommands = ImmutableList.of(
+                Token1Definition.INSTANCE.exchangeCommand(), Token2Definition.INSTANCE.exchangeCommand(), rate);
+        for (Command<?> command : stx.getTx().getCommands()) {
+            if (command.getValue() instanceof ExchangeRate && !command.getValue().equals(rate)) {
+                throw new FlowException("Exchange is priced at " + command.getValue() + " instead of " + rate);
+            }
+        }
+        TokenEngine.checkProposal(responder, ImmutableList.<TokenDefinition<?>>of(Token1Definition.INSTANCE, Token2Definition.INSTANCE),
+                expectedCommands, stx, handedOver);
+
+        for (StateAndRef<ContractState> input : serviceHub.loadStates(new LinkedHashSet<>(stx.getInputs()))) {
+            if (handedOver.contains(input.getRef())) continue;
+            PublicKey ownerKey = ((AccountToken) input.getState().getData()).getOwner().getOwningKey();
+            if (serviceHub.getKeyManagementService().filterMyKeys(Collections.singleton(ownerKey)).iterator().hasNext()) {
+                throw new FlowException("Exchange spends input " + input.getRef() + " of ours besides the Token2 states we sent");
+            }
+        }
+
+        long paid = 0;
+        for (TokenState output : stx.getTx().outputsOfType(TokenState.class)) {
+            if (ours(serviceHub, accountId, output.getOwner().getOwningKey())) paid += output.getAmount();
+        }
+        if (paid < token1Amount) {
+            throw new FlowException("Exchange pays " + paid + " Token1 to " + accountId + ", agreed " + token1Amount);
+        }
+        long returned = 0;
+        for (Token2State output : stx.getTx().outputsOfType(Token2State.class)) {
+            if (ours(serviceHub, accountId, output.getOwner().getOwningKey())) returned += output.getAmount();
+        }
+        if (returned < change) {
+            throw new FlowException("Exchange returns " + returned + " Token2 change to " + accountId + ", owed " + change);
+        }
+    }
+
+    // A key this node holds for the account, so what it owns is really the account's
+    private static boolean ours(ServiceHub serviceHub, UUID accountId, PublicKey key) {
+        return accountId.equals(serviceHub.getIdentityService().externalIdForPublicKey(key))
+                && serviceHub.getKeyManagementService().filterMyKeys(Collections.singleton(key)).iterator().hasNext();
+    }
+
+    // Both legs may push a backchain past the reissue threshold
+    private static void afterRecording(FlowLogic<?> flow, SignedTransaction stx) {
+        ReissuePolicyService policy = flow.getServiceHub().cordaService(ReissuePolicyService.class);
+        policy.afterRecording(flow.getServiceHub(), Token1Definition.INSTANCE, stx);
+        policy.afterRecording(flow.getServiceHub(), Token2Definition.INSTANCE, stx);
+    }
+}
@@ -0,0 +1,61 @@
+package bootcamp;
+
+import net.corda.core.contracts.CommandData;
+import net.corda.core.identity.Party;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+
+/**
+ * Token2 per Token1 as quoted by the oracle at asOf. Added to a cross token swap with the oracle as
+ * its only signer; Token2Contract then holds the swap to the rate, and the oracle signs the
+ * transaction only after seeing this command and nothing else of it.
+ */
+public class ExchangeRate implements CommandData {
+
+    private final Party oracle;
+    private final BigDecimal rate;
+    private final Instant asOf;
+
+    public ExchangeRate(Party oracle, BigDecimal rate, Instant asOf) {
+        this.oracle = oracle;
+        this.rate = rate;
+        this.asOf = asOf;
+    }
+
+    public Party getOracle() {
+        return oracle;
+    }
+
+    public BigDecimal getRate() {
+        return rate;
+    }
+
+    public Instant getAsOf() {
+        return asOf;
+    }
+
+    // Whole Token2 for the Token1 amount, rounded half even
+    public long token2For(long token1Amount) {
+        return rate.multiply(BigDecimal.valueOf(token1Amount)).setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof ExchangeRate)) return false;
+        ExchangeRate that = (ExchangeRate) other;
+        return oracle.equals(that.oracle) && rate.compareTo(that.rate) == 0 && asOf.equals(that.asOf);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * oracle.hashCode() + rate.stripTrailingZeros().hashCode()) + asOf.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return rate.toPlainString() + " Token2 per Token1 by " + oracle + " as of " + asOf;
+    }
+}
@@ -0,0 +1,139 @@
+package bootcamp;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.InitiatedBy;
+import net.corda.core.flows.InitiatingFlow;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.FilteredTransaction;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+
+/**
+ * Flows between a node and the ExchangeRateOracle on another node: Query fetches the current
+ * rate, Sign has the oracle sign a transaction torn off with tearOff() down to its rate command.
+ */
+public class ExchangeRateFlow {
+
+    /**
+     * Tears the transaction down to its ExchangeRate commands signed by the oracle, everything else
+     * is only present as Merkle hashes.
+     */
+    public static FilteredTransaction tearOff(SignedTransaction stx, PublicKey oracleKey) {
+        return stx.buildFilteredTransaction(component -> component instanceof Command
+                && ((Command<?>) component).getValue() instanceof ExchangeRate
+                && ((Command<?>) component).getSigners().contains(oracleKey));
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Query extends FlowLogic<ExchangeRate> {
+
+        private final Party oracle;
+
+        public Query(Party oracle) {
+            this.oracle = oracle;
+        }
+
+        @Override
+        @Suspendable
+        public ExchangeRate call() throws FlowException {
+            return initiateFlow(oracle).receive(ExchangeRate.class).unwrap(rate -> {
+                if (!oracle.equals(rate.getOracle())) {
+                    throw new FlowException("Oracle " + oracle + " quoted a rate of " + rate.getOracle());
+                }
+                if (rate.getRate().signum() <= 0) {
+                    throw new FlowException("Oracle " + oracle + " quoted a rate of " + rate.getRate());
+                }
+                return rate;
+            });
+        }
+    }
+
+    @InitiatedBy(Query.class)
+    public static class QueryHandler extends FlowLogic<Void> {
+
+        private final FlowSession otherSide;
+
+        public QueryHandler(FlowSession otherSide) {
+            this.otherSide = otherSide;
+        }
+
+        @Override
+        @Suspendable
+        public Void call() throws FlowException {
+            ExchangeRate rate;
+            try {
+                rate = getServiceHub().cordaService(ExchangeRateOracle.class).query();
+            } catch (IllegalStateException e) {
+                throw new FlowException(e.getMessage());
+            }
+            otherSide.send(rate);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the oracle's signature over the transaction the filtered transaction was torn off.
+     */
+    @InitiatingFlow
+    public static class Sign extends FlowLogic<TransactionSignature> {
+
+        private final Party oracle;
+        private final FilteredTransaction filteredTransaction;
+
+        public Sign(Party oracle, FilteredTransaction filteredTransaction) {
+            this.oracle = oracle;
+            this.filteredTransaction = filteredTransaction;
+        }
+
+        @Override
+        @Suspendable
+        public TransactionSignature call() throws FlowException {
+            return initiateFlow(oracle).sendAndReceive(TransactionSignature.class, filteredTransaction).unwrap(signature -> {
+                if (!signature.getBy().equals(oracle.getOwningKey())) {
+                    throw new FlowException("Signature is not by oracle " + oracle);
+                }
+                try {
+                    if (!signature.isValid(filteredTransaction.getId())) {
+                        throw new FlowException("Oracle " + oracle + " returned an invalid signature");
+                    }
+                } catch (GeneralSecurityException e) {
+                    throw new FlowException("Oracle " + oracle + " returned an invalid signature", e);
+                }
+                return signature;
+            });
+        }
+    }
+
+    @InitiatedBy(Sign.class)
+    public static class SignHandler extends FlowLogic<Void> {
+
+        private final FlowSession otherSide;
+
+        public SignHandler(FlowSession otherSide) {
+            this.otherSide = otherSide;
+        }
+
+        @Override
+        @Suspendable
+        public Void call() throws FlowException {
+            FilteredTransaction filteredTransaction = otherSide.receive(FilteredTransaction.class).unwrap(it -> it);
+            TransactionSignature signature;
+            try {
+                signature = getServiceHub().cordaService(ExchangeRateOracle.class).sign(filteredTransaction);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                throw new FlowException(e.getMessage());
+            }
+            otherSide.send(signature);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package bootcamp;
+
+import kotlin.Unit;
+import net.corda.core.contracts.Command;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.ComponentVisibilityException;
+import net.corda.core.transactions.FilteredTransaction;
+import net.corda.core.transactions.FilteredTransactionVerificationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Quotes Token2 per Token1 and signs transactions that use one of its recent quotes. It only ever
+ * sees a FilteredTransaction holding the ExchangeRate commands it has to sign for, never the full
+ * transaction, and signs when each of them carries a rate it quoted within the validity window.
+ *
+ * Quotes come from memory. A background thread, started by the first query or signature, refreshes
+ * them every exchangeRateRefreshMs from the rate source: the first line of exchangeRateFile when
+ * set, so any local process writing that file acts as the source, otherwise a simulated random
+ * walk from exchangeRateStart. Each refresh is a new quote, even when the rate is unchanged.
+ *
+ * Configured through the CorDapp config:
+ * - exchangeRateFile: file holding the current rate, unset by default
+ * - exchangeRateStart: first rate of the simulated feed, 1.0 by default
+ * - exchangeRateRefreshMs: time between quotes, 1000 by default
+ * - exchangeRateValidityMs: how long a quote can still be signed, 30000 by default
+ * - exchangeRateOracle: X500 name of the oracle whose rates this node accepts in exchanges it
+ *   signs as counterparty, unset by default so it refuses every rated exchange
+ *
+ * Every node loads the service, only the ones asked for rates start the refresh.
+ */
+@CordaService
+public class ExchangeRateOracle extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExchangeRateOracle.class);
+
+    private static final String FILE_KEY = "exchangeRateFile";
+    private static final String START_KEY = "exchangeRateStart";
+    private static final String REFRESH_KEY = "exchangeRateRefreshMs";
+    private static final String VALIDITY_KEY = "exchangeRateValidityMs";
+    private static final String TRUSTED_KEY = "exchangeRateOracle";
+    private static final String DEFAULT_START = "1.0";
+    private static final int DEFAULT_REFRESH_MS = 1000;
+    private static final int DEFAULT_VALIDITY_MS = 30_000;
+    // Digits kept of a rate, and the largest step of the simulated walk
+    private static final int SCALE = 6;
+    private static final double SIMULATED_STEP = 0.001;
+
+    private final AppServiceHub serviceHub;
+    private final Path rateFile;
+    private final long refreshMs;
+    private final Duration validity;
+    private final CordaX500Name trustedOracle;
+    private final Random random = new Random();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "exchange-rate-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Every quote still valid, oldest overwritten first; only the refresh thread writes
+    private final AtomicReferenceArray<ExchangeRate> quotes;
+    private int nextQuote;
+    private volatile ExchangeRate latest;
+    private BigDecimal simulatedRate;
+    private long fileModified;
+
+    private final AtomicLong signed = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    public ExchangeRateOracle(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.rateFile = config.exists(FILE_KEY) ? Paths.get(config.getString(FILE_KEY)) : null;
+        this.simulatedRate = new BigDecimal(config.exists(START_KEY) ? config.getString(START_KEY) : DEFAULT_START);
+        this.refreshMs = config.exists(REFRESH_KEY) ? config.getInt(REFRESH_KEY) : DEFAULT_REFRESH_MS;
+        this.validity = Duration.ofMillis(config.exists(VALIDITY_KEY) ? config.getInt(VALIDITY_KEY) : DEFAULT_VALIDITY_MS);
+        this.trustedOracle = config.exists(TRUSTED_KEY) ? CordaX500Name.parse(config.getString(TRUSTED_KEY)) : null;
+        this.quotes = new AtomicReferenceArray<>((int) (validity.toMillis() / refreshMs) + 2);
+        // Refreshes would otherwise go on after the node stops
+        serviceHub.registerUnloadHandler(() -> {
+            refresher.shutdownNow();
+            return Unit.INSTANCE;
+        });
+    }
+
+    /**
+     * The latest quote. Throws IllegalStateException when the source has not produced a rate
+     * within the validity window.
+     */
+    public ExchangeRate query() {
+        startRefresh();
+        ExchangeRate quote = latest;
+        if (quote == null || quote.getAsOf().isBefore(Instant.now().minus(validity))) {
+            throw new IllegalStateException("No exchange rate quoted in the last " + validity.toMillis() + " ms");
+        }
+        return quote;
+    }
+
+    /**
+     * Signs the Merkle root of the filtered transaction when every component it reveals is an
+     * ExchangeRate command for this oracle with a rate it quoted, and no command needing this
+     * oracle's signature is hidden. Throws IllegalArgumentException otherwise.
+     */
+    public TransactionSignature sign(FilteredTransaction filteredTransaction) {
+        startRefresh();
+        long start = System.nanoTime();
+        PublicKey oracleKey = serviceHub.getMyInfo().getLegalIdentities().get(0).getOwningKey();
+        try {
+            filteredTransaction.verify();
+            filteredTransaction.checkCommandVisibility(oracleKey);
+        } catch (FilteredTransactionVerificationException | ComponentVisibilityException e) {
+            refused.incrementAndGet();
+            throw new IllegalArgumentException("Filtered transaction " + filteredTransaction.getId() + " is not valid: " + e.getMessage());
+        }
+        Instant oldest = Instant.now().minus(validity);
+        if (!filteredTransaction.checkWithFun(component -> isQuoted(component, oracleKey, oldest))) {
+            refused.incrementAndGet();
+            throw new IllegalArgumentException("Transaction " + filteredTransaction.getId()
+                    + " reveals more than exchange rates of this oracle, or a rate it has not quoted recently");
+        }
+        TransactionSignature signature = serviceHub.createSignature(filteredTransaction, oracleKey);
+        signed.incrementAndGet();
+        serviceHub.cordaService(FlowMetricsService.class).record(ExchangeRateOracle.class, "sign", start);
+        return signature;
+    }
+
+    /**
+     * Whether the oracle is the well-known identity of the oracle this node is configured to trust.
+     */
+    public boolean trusts(Party oracle) {
+        return trustedOracle != null && oracle.equals(serviceHub.getIdentityService().wellKnownPartyFromX500Name(trustedOracle));
+    }
+
+    public long getSigned() {
+        return signed.get();
+    }
+
+    public long getRefused() {
+        return refused.get();
+    }
+
+    private boolean isQuoted(Object component, PublicKey oracleKey, Instant oldest) {
+        if (!(component instanceof Command)) return false;
+        Command<?> command = (Command<?>) component;
+        if (!(command.getValue() instanceof ExchangeRate) || !command.getSigners().equals(Collections.singletonList(oracleKey))) {
+            return false;
+        }
+        ExchangeRate rate = (ExchangeRate) command.getValue();
+        if (rate.getAsOf().isBefore(oldest)) return false;
+        for (int i = 0; i < quotes.length(); i++) {
+            if (rate.equals(quotes.get(i))) return true;
+        }
+        return false;
+    }
+
+    // The first callers wait for a rate to be loaded, so the first query does not find the cache empty
+    private void startRefresh() {
+        if (started.get()) return;
+        synchronized (started) {
+            if (started.get()) return;
+            try {
+                refresher.submit(this::refresh).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.warn("First exchange rate refresh failed", e.getCause());
+            }
+            refresher.scheduleAtFixedRate(this::refresh, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+            started.set(true);
+        }
+    }
+
+    private void refresh() {
+        try {
+            BigDecimal rate = rateFile == null ? simulate() : readFile();
+            if (rate == null) return;
+            ExchangeRate quote = new ExchangeRate(serviceHub.getMyInfo().getLegalIdentities().get(0), rate, Instant.now());
+            quotes.set(nextQuote, quote);
+            nextQuote = (nextQuote + 1) % quotes.length();
+            latest = quote;
+        } catch (RuntimeException e) {
+            // A scheduled task that throws is never run again
+            logger.warn("Exchange rate refresh failed", e);
+        }
+    }
+
+    private BigDecimal simulate() {
+        double step = (random.nextDouble() * 2 - 1) * SIMULATED_STEP;
+        simulatedRate = simulatedRate.multiply(BigDecimal.valueOf(1 + step)).setScale(SCALE, RoundingMode.HALF_EVEN);
+        return simulatedRate;
+    }
+
+    // Keeps quoting the last rate read while the file is unchanged; nothing until it first holds a rate
+    private BigDecimal readFile() {
+        try {
+            long modified = Files.getLastModifiedTime(rateFile).toMillis();
+            if (modified != fileModified || latest == null) {
+                List<String> lines = Files.readAllLines(rateFile, StandardCharsets.UTF_8);
+                BigDecimal rate = new BigDecimal(lines.get(0).trim()).setScale(SCALE, RoundingMode.HALF_EVEN);
+                if (rate.signum() <= 0) {
+                    throw new NumberFormatException("Rate " + rate + " is not positive");
+                }
+                fileModified = modified;
+                return rate;
+            }
+            return latest.getRate();
+        } catch (IOException | IndexOutOfBoundsException | NumberFormatException e) {
+            logger.warn("Could not read an exchange rate from " + rateFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
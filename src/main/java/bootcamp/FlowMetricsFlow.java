@@ -0,0 +1,21 @@
+package bootcamp;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+import java.util.Map;
+
+/**
+ * Returns this node's flow phase timings, the same numbers FlowMetricsService publishes over JMX.
+ */
+@StartableByRPC
+public class FlowMetricsFlow extends FlowLogic<Map<String, String>> {
+
+    @Override
+    @Suspendable
+    public Map<String, String> call() throws FlowException {
+        return getServiceHub().cordaService(FlowMetricsService.class).summary();
+    }
+}
@@ -0,0 +1,84 @@
+package bootcamp;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.jmx.JmxReporter;
+import kotlin.Unit;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per flow class, per phase timers and failure counters, published over JMX under the
+ * "bootcamp.flows.<legal name>" domain, so nodes sharing a JVM, as in a MockNetwork, each keep
+ * their own MBeans. Metrics are named FlowClass.phase, e.g. TokenSwap.finality.
+ *
+ * Flows keep System.nanoTime() starts in locals rather than Timer.Context, so nothing
+ * unserializable ends up in a checkpoint.
+ */
+@CordaService
+public class FlowMetricsService extends SingletonSerializeAsToken {
+
+    public static final String JMX_DOMAIN = "bootcamp.flows";
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final JmxReporter reporter;
+
+    public FlowMetricsService(AppServiceHub serviceHub) {
+        reporter = JmxReporter.forRegistry(registry).inDomain(jmxDomain(serviceHub.getMyInfo().getLegalIdentities().get(0).getName())).build();
+        reporter.start();
+        // The MBeans would otherwise outlive the node
+        serviceHub.registerUnloadHandler(() -> {
+            reporter.stop();
+            return Unit.INSTANCE;
+        });
+    }
+
+    /**
+     * The JMX domain of the node's metrics, JMX_DOMAIN followed by the legal name with every
+     * character other than letters, digits, dots and dashes replaced by an underscore.
+     */
+    public static String jmxDomain(CordaX500Name legalName) {
+        return JMX_DOMAIN + "." + legalName.toString().replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+
+    /**
+     * Records the time since startNanos, taken from System.nanoTime(), against the phase.
+     */
+    public void record(Class<?> flowClass, String phase, long startNanos) {
+        registry.timer(MetricRegistry.name(flowClass.getSimpleName(), phase)).update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void failed(Class<?> flowClass) {
+        registry.counter(MetricRegistry.name(flowClass.getSimpleName(), "failed")).inc();
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * One line per timer: count, mean and p50/p95/p99 in milliseconds. Counters report their count.
+     */
+    public Map<String, String> summary() {
+        Map<String, String> summary = new TreeMap<>();
+        for (Map.Entry<String, Timer> timer : registry.getTimers().entrySet()) {
+            Snapshot snapshot = timer.getValue().getSnapshot();
+            summary.put(timer.getKey(), String.format("count=%d mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms",
+                    timer.getValue().getCount(), millis(snapshot.getMean()), millis(snapshot.getMedian()),
+                    millis(snapshot.get95thPercentile()), millis(snapshot.get99thPercentile())));
+        }
+        registry.getCounters().forEach((name, counter) -> summary.put(name, "count=" + counter.getCount()));
+        return summary;
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,122 @@
+package bootcamp;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the notary for new transactions (issuances). Transactions with inputs stay on the
+ * inputs' notary. The notary set is cached, sorted by name so every node sees the same order,
+ * and refreshed whenever the network map changes.
+ *
+ * Configured through the CorDapp config:
+ * - notarySelection: first (default), roundRobin or hash
+ * - preferredNotary: X500 name, used whenever it is in the network map
+ */
+@CordaService
+public class NotarySelectionService extends SingletonSerializeAsToken {
+
+    public enum Strategy { FIRST, ROUND_ROBIN, HASH }
+
+    private static final String STRATEGY_KEY = "notarySelection";
+    private static final String PREFERRED_KEY = "preferredNotary";
+
+    private final AppServiceHub serviceHub;
+    private final Strategy strategy;
+    private final CordaX500Name preferredName;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private volatile List<Party> notaries;
+
+    public NotarySelectionService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.strategy = config.exists(STRATEGY_KEY) ? parseStrategy(config.getString(STRATEGY_KEY)) : Strategy.FIRST;
+        this.preferredName = config.exists(PREFERRED_KEY) ? CordaX500Name.parse(config.getString(PREFERRED_KEY)) : null;
+        refresh();
+        serviceHub.getNetworkMapCache().getChanged().subscribe(change -> refresh());
+    }
+
+    private static Strategy parseStrategy(String value) {
+        switch (value) {
+            case "first":
+                return Strategy.FIRST;
+            case "roundRobin":
+                return Strategy.ROUND_ROBIN;
+            case "hash":
+                return Strategy.HASH;
+            default:
+                throw new IllegalArgumentException("Unknown " + STRATEGY_KEY + " " + value + ", expected first, roundRobin or hash");
+        }
+    }
+
+    private void refresh() {
+        List<Party> current = new ArrayList<>(serviceHub.getNetworkMapCache().getNotaryIdentities());
+        current.sort(Comparator.comparing(notary -> notary.getName().toString()));
+        notaries = current;
+    }
+
+    /**
+     * The notary for a new transaction. partitionKey spreads transactions over the notaries under
+     * the hash strategy, so the same key, e.g. an account id, always lands on the same notary, and
+     * stays there when other notaries join or leave.
+     */
+    public Party notaryFor(Object partitionKey) {
+        List<Party> candidates = notaries;
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException("No notary in the network map");
+        }
+        if (preferredName != null) {
+            for (Party notary : candidates) {
+                if (notary.getName().equals(preferredName)) return notary;
+            }
+        }
+        switch (strategy) {
+            case ROUND_ROBIN:
+                return candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+            case HASH:
+                return rendezvous(candidates, partitionKey);
+            default:
+                return candidates.get(0);
+        }
+    }
+
+    // Highest random weight: the key goes to the notary scoring highest with it, so adding or removing one
+    // notary only moves the keys that notary wins or held, about 1/N of them
+    private static Party rendezvous(List<Party> candidates, Object partitionKey) {
+        long keyHash = partitionKey.hashCode();
+        Party winner = null;
+        long best = 0;
+        for (Party notary : candidates) {
+            long weight = mix(keyHash * 0x9E3779B97F4A7C15L ^ notary.getName().hashCode());
+            if (winner == null || Long.compareUnsigned(weight, best) > 0) {
+                winner = notary;
+                best = weight;
+            }
+        }
+        return winner;
+    }
+
+    // SplitMix64 finaliser, spreads the combined hashes evenly over 64 bits
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public List<Party> getNotaries() {
+        return notaries;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+}
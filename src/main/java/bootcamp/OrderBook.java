@@ -0,0 +1,327 @@
+package bootcamp;
+
+import java.util.Arrays;
+
+/**
+ * Price-time priority limit order book of Token1 against Token2, matched in memory. Prices are
+ * Token2 per Token1 and quantities Token1, both in whole units. An incoming order trades with the
+ * best opposite price first and the oldest order first within a price, at the resting order's
+ * price; whatever is left rests in the book.
+ *
+ * Not thread safe, one thread owns the book. Orders live in slots of parallel primitive arrays,
+ * chained per price level and recycled through a free list, price levels are sorted long arrays
+ * and order ids map to slots through an open addressing long to int table. Once the arrays have
+ * grown to the size of the book, placing, matching and cancelling allocate nothing.
+ */
+public final class OrderBook {
+
+    public static final int BUY = 0;
+    public static final int SELL = 1;
+
+    private static final int NONE = -1;
+
+    /**
+     * Told about every trade as it is matched, on the thread that placed the incoming order.
+     */
+    public interface FillListener {
+        void onFill(long buyOrderId, String buyer, long sellOrderId, String seller, long price, long quantity);
+    }
+
+    private final FillListener listener;
+
+    // Order slots; next and previous chain the orders of a price level oldest first
+    private long[] orderIds;
+    private int[] sides;
+    private long[] prices;
+    private long[] remaining;
+    private String[] owners;
+    private int[] next;
+    private int[] previous;
+    private int freeSlot = NONE;
+    private int usedSlots;
+    private int restingOrders;
+
+    private final Levels[] levels = { new Levels(), new Levels() };
+    private final LongIntMap slotsById;
+
+    public OrderBook(int initialOrders, FillListener listener) {
+        int capacity = Math.max(initialOrders, 16);
+        this.listener = listener;
+        this.orderIds = new long[capacity];
+        this.sides = new int[capacity];
+        this.prices = new long[capacity];
+        this.remaining = new long[capacity];
+        this.owners = new String[capacity];
+        this.next = new int[capacity];
+        this.previous = new int[capacity];
+        this.slotsById = new LongIntMap(capacity);
+    }
+
+    /**
+     * Matches the order against the book and rests what is left of it. Returns the quantity
+     * that traded straight away. Order ids must be positive and unique.
+     */
+    public long place(long orderId, int side, String owner, long price, long quantity) {
+        if (orderId <= 0) throw new IllegalArgumentException("Order ids must be positive");
+        if (side != BUY && side != SELL) throw new IllegalArgumentException("Unknown side " + side);
+        if (price <= 0 || quantity <= 0) throw new IllegalArgumentException("Price and quantity must be positive");
+        if (slotsById.get(orderId) != NONE) throw new IllegalArgumentException("Order " + orderId + " is already in the book");
+
+        long left = match(orderId, side, owner, price, quantity);
+        if (left > 0) {
+            rest(orderId, side, owner, price, left);
+        }
+        return quantity - left;
+    }
+
+    /**
+     * Takes a resting order out of the book. Returns false when it has traded in full or was
+     * never placed.
+     */
+    public boolean cancel(long orderId) {
+        int slot = slotsById.get(orderId);
+        if (slot == NONE) return false;
+        Levels book = levels[sides[slot]];
+        unlink(book, book.find(key(sides[slot], prices[slot])), slot);
+        return true;
+    }
+
+    public int getRestingOrders() {
+        return restingOrders;
+    }
+
+    // Highest bid, or 0 when nobody is buying
+    public long bestBid() {
+        Levels bids = levels[BUY];
+        return bids.count == 0 ? 0 : price(BUY, bids.keys[bids.count - 1]);
+    }
+
+    // Lowest ask, or 0 when nobody is selling
+    public long bestAsk() {
+        Levels asks = levels[SELL];
+        return asks.count == 0 ? 0 : price(SELL, asks.keys[asks.count - 1]);
+    }
+
+    public int priceLevels(int side) {
+        return levels[side].count;
+    }
+
+    private long match(long orderId, int side, String owner, long limit, long quantity) {
+        int opposite = 1 - side;
+        Levels book = levels[opposite];
+        long left = quantity;
+        while (left > 0 && book.count > 0) {
+            int level = book.count - 1;
+            long price = price(opposite, book.keys[level]);
+            if (side == BUY ? price > limit : price < limit) break;
+
+            // The level goes away with its last order
+            while (left > 0 && level < book.count) {
+                int slot = book.heads[level];
+                long traded = Math.min(left, remaining[slot]);
+                if (side == BUY) {
+                    listener.onFill(orderId, owner, orderIds[slot], owners[slot], price, traded);
+                } else {
+                    listener.onFill(orderIds[slot], owners[slot], orderId, owner, price, traded);
+                }
+                left -= traded;
+                remaining[slot] -= traded;
+                if (remaining[slot] == 0) {
+                    unlink(book, level, slot);
+                }
+            }
+        }
+        return left;
+    }
+
+    private void rest(long orderId, int side, String owner, long price, long quantity) {
+        int slot = allocate();
+        orderIds[slot] = orderId;
+        sides[slot] = side;
+        prices[slot] = price;
+        remaining[slot] = quantity;
+        owners[slot] = owner;
+        next[slot] = NONE;
+
+        Levels book = levels[side];
+        long key = key(side, price);
+        int level = book.find(key);
+        if (level < 0) {
+            level = book.insert(-level - 1, key);
+        }
+        previous[slot] = book.tails[level];
+        if (book.tails[level] == NONE) {
+            book.heads[level] = slot;
+        } else {
+            next[book.tails[level]] = slot;
+        }
+        book.tails[level] = slot;
+        slotsById.put(orderId, slot);
+        restingOrders++;
+    }
+
+    // Removes the order from its level, dropping the level once it is empty, and frees the slot
+    private void unlink(Levels book, int level, int slot) {
+        if (previous[slot] == NONE) {
+            book.heads[level] = next[slot];
+        } else {
+            next[previous[slot]] = next[slot];
+        }
+        if (next[slot] == NONE) {
+            book.tails[level] = previous[slot];
+        } else {
+            previous[next[slot]] = previous[slot];
+        }
+        if (book.heads[level] == NONE) {
+            book.remove(level);
+        }
+        slotsById.remove(orderIds[slot]);
+        owners[slot] = null;
+        next[slot] = freeSlot;
+        freeSlot = slot;
+        restingOrders--;
+    }
+
+    private int allocate() {
+        if (freeSlot != NONE) {
+            int slot = freeSlot;
+            freeSlot = next[slot];
+            return slot;
+        }
+        if (usedSlots == orderIds.length) {
+            int capacity = orderIds.length * 2;
+            orderIds = Arrays.copyOf(orderIds, capacity);
+            sides = Arrays.copyOf(sides, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            remaining = Arrays.copyOf(remaining, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            next = Arrays.copyOf(next, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+        }
+        return usedSlots++;
+    }
+
+    // Levels are sorted ascending by key with the best price last; asks use the negated price so the lowest sorts last
+    private static long key(int side, long price) {
+        return side == BUY ? price : -price;
+    }
+
+    private static long price(int side, long key) {
+        return side == BUY ? key : -key;
+    }
+
+    /**
+     * The price levels of one side: sorted keys and the first and last order slot of each.
+     */
+    private static final class Levels {
+
+        private long[] keys = new long[64];
+        private int[] heads = new int[64];
+        private int[] tails = new int[64];
+        private int count;
+
+        // Index of the key, or -(insertion point) - 1
+        private int find(long key) {
+            return Arrays.binarySearch(keys, 0, count, key);
+        }
+
+        private int insert(int index, long key) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                heads = Arrays.copyOf(heads, count * 2);
+                tails = Arrays.copyOf(tails, count * 2);
+            }
+            System.arraycopy(keys, index, keys, index + 1, count - index);
+            System.arraycopy(heads, index, heads, index + 1, count - index);
+            System.arraycopy(tails, index, tails, index + 1, count - index);
+            keys[index] = key;
+            heads[index] = NONE;
+            tails[index] = NONE;
+            count++;
+            return index;
+        }
+
+        private void remove(int index) {
+            System.arraycopy(keys, index + 1, keys, index, count - index - 1);
+            System.arraycopy(heads, index + 1, heads, index, count - index - 1);
+            System.arraycopy(tails, index + 1, tails, index, count - index - 1);
+            count--;
+        }
+    }
+
+    /**
+     * Order id to slot, linear probing over power of two arrays. Ids are positive, 0 marks a free
+     * entry; removal shifts the following entries back so lookups never need tombstones.
+     */
+    private static final class LongIntMap {
+
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        private LongIntMap(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+        }
+
+        private int get(long key) {
+            int mask = keys.length - 1;
+            for (int index = hash(key) & mask; keys[index] != 0; index = (index + 1) & mask) {
+                if (keys[index] == key) return values[index];
+            }
+            return NONE;
+        }
+
+        private void put(long key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int index = hash(key) & mask;
+            while (keys[index] != 0 && keys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            if (keys[index] == 0) size++;
+            keys[index] = key;
+            values[index] = value;
+        }
+
+        private void remove(long key) {
+            int mask = keys.length - 1;
+            int index = hash(key) & mask;
+            while (keys[index] != key) {
+                if (keys[index] == 0) return;
+                index = (index + 1) & mask;
+            }
+            keys[index] = 0;
+            size--;
+            // Move back any later entry of the run that may no longer be reachable from its home
+            for (int gap = index, probe = (index + 1) & mask; keys[probe] != 0; probe = (probe + 1) & mask) {
+                int home = hash(keys[probe]) & mask;
+                if (((probe - home) & mask) >= ((probe - gap) & mask)) {
+                    keys[gap] = keys[probe];
+                    values[gap] = values[probe];
+                    keys[probe] = 0;
+                    gap = probe;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int hash(long key) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32));
+        }
+    }
+}
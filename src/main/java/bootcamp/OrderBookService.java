@@ -0,0 +1,259 @@
+package bootcamp;
+
+import kotlin.Unit;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Order book of Token1 against Token2 for the accounts hosted on this node. Orders and cancels
+ * are queued by the order flows and applied by a single matcher thread, the only thread touching
+ * the OrderBook. Fills are settled off that thread, one OrderSettlementFlow at a time, so fills
+ * matched while a settlement runs are batched into the next one.
+ *
+ * A batch that fails, e.g. because its inputs span notaries, is settled again fill by fill. A
+ * fill that fails on its own is logged and kept in getFailedFills(); its orders have already
+ * left the book. Orders are not checked against balances, so an account that sells or buys
+ * more than it holds fails at settlement.
+ *
+ * Configured through the CorDapp config:
+ * - orderBookSettleBatch: most fills per settlement transaction, 100 by default
+ * - orderBookQueueSize: orders and cancels waiting for the matcher before new ones are refused, 65536 by default
+ *
+ * The book is held in memory, resting orders are lost when the node stops.
+ */
+@CordaService
+public class OrderBookService extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderBookService.class);
+
+    private static final String SETTLE_BATCH_KEY = "orderBookSettleBatch";
+    private static final String QUEUE_SIZE_KEY = "orderBookQueueSize";
+    private static final int DEFAULT_SETTLE_BATCH = 100;
+    private static final int DEFAULT_QUEUE_SIZE = 65536;
+    // Orders applied per wake-up of the matcher
+    private static final int DRAIN_SIZE = 1024;
+
+    private final AppServiceHub serviceHub;
+    private final int settleBatch;
+    private final BlockingQueue<Request> requests;
+    private final ConcurrentLinkedQueue<Settlement> settled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong orderIds = new AtomicLong();
+
+    // Owned by the matcher thread
+    private final OrderBook book;
+    private final List<Request> drained = new ArrayList<>(DRAIN_SIZE);
+    private final List<OrderSettlementFlow.Fill> pending = new ArrayList<>();
+    private final Deque<List<OrderSettlementFlow.Fill>> retries = new ArrayDeque<>();
+    private int settlingFills;
+
+    // Written by the matcher, read by the stats flow
+    private final List<OrderSettlementFlow.Fill> failedFills = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong ordersMatched = new AtomicLong();
+    private final AtomicLong fillsMatched = new AtomicLong();
+    private final AtomicLong fillsSettled = new AtomicLong();
+    private final AtomicLong settlements = new AtomicLong();
+    private volatile int restingOrders;
+    private volatile int unsettledFills;
+    private volatile long bestBid;
+    private volatile long bestAsk;
+
+    private final ExecutorService starter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "order-settlement");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public OrderBookService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.settleBatch = config.exists(SETTLE_BATCH_KEY) ? config.getInt(SETTLE_BATCH_KEY) : DEFAULT_SETTLE_BATCH;
+        this.requests = new ArrayBlockingQueue<>(config.exists(QUEUE_SIZE_KEY) ? config.getInt(QUEUE_SIZE_KEY) : DEFAULT_QUEUE_SIZE);
+        this.book = new OrderBook(1024, (buyOrderId, buyer, sellOrderId, seller, price, quantity) -> {
+            pending.add(new OrderSettlementFlow.Fill(buyOrderId, buyer, sellOrderId, seller, price, quantity, System.nanoTime()));
+            fillsMatched.incrementAndGet();
+        });
+
+        Thread matcher = new Thread(this::match, "order-book");
+        matcher.setDaemon(true);
+        matcher.start();
+        // Neither thread would otherwise outlive the node
+        serviceHub.registerUnloadHandler(() -> {
+            matcher.interrupt();
+            starter.shutdownNow();
+            return Unit.INSTANCE;
+        });
+    }
+
+    /**
+     * Queues an order of the account for matching and returns its id. Throws IllegalStateException
+     * when the matcher is too far behind to take it.
+     */
+    public long place(int side, String account, long price, long quantity) {
+        long orderId = orderIds.incrementAndGet();
+        if (!requests.offer(new Request(orderId, side, account, price, quantity))) {
+            throw new IllegalStateException("Order book queue is full, try again later");
+        }
+        return orderId;
+    }
+
+    /**
+     * Queues the cancel of a resting order. Parts of it that trade before the cancel is applied
+     * still settle.
+     */
+    public void cancel(long orderId) {
+        if (!requests.offer(new Request(orderId, -1, null, 0, 0))) {
+            throw new IllegalStateException("Order book queue is full, try again later");
+        }
+    }
+
+    public String stats() {
+        return "Orders matched: " + ordersMatched.get() + ", resting: " + restingOrders + ", best bid: " + bestBid + ", best ask: " + bestAsk
+                + "\nFills matched: " + fillsMatched.get() + ", settled: " + fillsSettled.get() + " in " + settlements.get()
+                + " transactions, unsettled: " + unsettledFills + ", failed: " + failedFills.size();
+    }
+
+    public List<OrderSettlementFlow.Fill> getFailedFills() {
+        synchronized (failedFills) {
+            return new ArrayList<>(failedFills);
+        }
+    }
+
+    // Matched fills not yet recorded, including the batch being settled
+    public int getUnsettledFills() {
+        return unsettledFills;
+    }
+
+    private void match() {
+        while (true) {
+            try {
+                Request first = requests.poll(10, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    apply(first);
+                    requests.drainTo(drained, DRAIN_SIZE);
+                    for (Request request : drained) {
+                        apply(request);
+                    }
+                    drained.clear();
+                }
+                for (Settlement settlement = settled.poll(); settlement != null; settlement = settled.poll()) {
+                    finished(settlement);
+                }
+                settle();
+                restingOrders = book.getRestingOrders();
+                bestBid = book.bestBid();
+                bestAsk = book.bestAsk();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Order book matcher failed", e);
+            }
+        }
+    }
+
+    private void apply(Request request) {
+        if (request.side < 0) {
+            book.cancel(request.orderId);
+            return;
+        }
+        book.place(request.orderId, request.side, request.account, request.price, request.quantity);
+        ordersMatched.incrementAndGet();
+    }
+
+    // Retries go first, one fill each, then up to settleBatch of the fills matched since the last settlement
+    private void settle() {
+        if (settlingFills == 0) {
+            List<OrderSettlementFlow.Fill> batch = retries.poll();
+            if (batch == null && !pending.isEmpty()) {
+                int size = Math.min(settleBatch, pending.size());
+                batch = new ArrayList<>(pending.subList(0, size));
+                pending.subList(0, size).clear();
+            }
+            if (batch != null) {
+                settlingFills = batch.size();
+                start(batch);
+            }
+        }
+        int retrying = 0;
+        for (List<OrderSettlementFlow.Fill> retry : retries) {
+            retrying += retry.size();
+        }
+        unsettledFills = pending.size() + retrying + settlingFills;
+    }
+
+    private void start(List<OrderSettlementFlow.Fill> batch) {
+        starter.execute(() -> {
+            try {
+                serviceHub.startFlow(new OrderSettlementFlow(batch)).getReturnValue().toCompletableFuture()
+                        .whenComplete((result, error) -> settled.add(new Settlement(batch, error)));
+            } catch (RuntimeException e) {
+                settled.add(new Settlement(batch, e));
+            }
+        });
+    }
+
+    private void finished(Settlement settlement) {
+        settlingFills = 0;
+        if (settlement.error == null) {
+            FlowMetricsService metrics = serviceHub.cordaService(FlowMetricsService.class);
+            for (OrderSettlementFlow.Fill fill : settlement.fills) {
+                metrics.record(OrderBookService.class, "settlementLag", fill.getMatchedAtNanos());
+            }
+            fillsSettled.addAndGet(settlement.fills.size());
+            settlements.incrementAndGet();
+        } else if (settlement.fills.size() > 1) {
+            logger.warn("Settlement of " + settlement.fills.size() + " fills failed, settling them one by one", settlement.error);
+            for (OrderSettlementFlow.Fill fill : settlement.fills) {
+                retries.add(Collections.singletonList(fill));
+            }
+        } else {
+            logger.warn("Settlement of " + settlement.fills.get(0) + " failed", settlement.error);
+            failedFills.add(settlement.fills.get(0));
+        }
+    }
+
+    // An order, or the cancel of one when side is negative
+    private static final class Request {
+
+        private final long orderId;
+        private final int side;
+        private final String account;
+        private final long price;
+        private final long quantity;
+
+        private Request(long orderId, int side, String account, long price, long quantity) {
+            this.orderId = orderId;
+            this.side = side;
+            this.account = account;
+            this.price = price;
+            this.quantity = quantity;
+        }
+    }
+
+    private static final class Settlement {
+
+        private final List<OrderSettlementFlow.Fill> fills;
+        private final Throwable error;
+
+        private Settlement(List<OrderSettlementFlow.Fill> fills, Throwable error) {
+            this.fills = fills;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package bootcamp;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+/**
+ * RPC entry points of OrderBookService. Orders are matched asynchronously: Buy and Sell return
+ * the order id as soon as the order is queued, and trades settle in the background.
+ */
+public class OrderFlow {
+
+    /**
+     * Buys quantity Token1 for at most price Token2 each.
+     */
+    @StartableByRPC
+    public static class Buy extends FlowLogic<Long> {
+
+        private final String account;
+        private final long price;
+        private final long quantity;
+
+        public Buy(String account, long price, long quantity) {
+            this.account = account;
+            this.price = price;
+            this.quantity = quantity;
+        }
+
+        @Override
+        @Suspendable
+        public Long call() throws FlowException {
+            return place(this, OrderBook.BUY, account, price, quantity);
+        }
+    }
+
+    /**
+     * Sells quantity Token1 for at least price Token2 each.
+     */
+    @StartableByRPC
+    public static class Sell extends FlowLogic<Long> {
+
+        private final String account;
+        private final long price;
+        private final long quantity;
+
+        public Sell(String account, long price, long quantity) {
+            this.account = account;
+            this.price = price;
+            this.quantity = quantity;
+        }
+
+        @Override
+        @Suspendable
+        public Long call() throws FlowException {
+            return place(this, OrderBook.SELL, account, price, quantity);
+        }
+    }
+
+    @StartableByRPC
+    public static class Cancel extends FlowLogic<Void> {
+
+        private final long orderId;
+
+        public Cancel(long orderId) {
+            this.orderId = orderId;
+        }
+
+        @Override
+        @Suspendable
+        public Void call() throws FlowException {
+            try {
+                getServiceHub().cordaService(OrderBookService.class).cancel(orderId);
+            } catch (IllegalStateException e) {
+                throw new FlowException(e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    @StartableByRPC
+    public static class Stats extends FlowLogic<String> {
+
+        @Override
+        @Suspendable
+        public String call() throws FlowException {
+            return getServiceHub().cordaService(OrderBookService.class).stats();
+        }
+    }
+
+    // Orders are checked here, the matcher thread only ever sees valid ones
+    private static long place(FlowLogic<?> flow, int side, String account, long price, long quantity) throws FlowException {
+        if (price <= 0 || quantity <= 0) {
+            throw new FlowException("Price and quantity must be positive");
+        }
+        try {
+            Math.multiplyExact(price, quantity);
+        } catch (ArithmeticException e) {
+            throw new FlowException("Price times quantity is too large");
+        }
+        StateAndRef<AccountInfo> info = flow.getServiceHub().cordaService(AccountCacheService.class).findAccountInfo(account);
+        if (info == null || !info.getState().getData().getHost().equals(flow.getOurIdentity())) {
+            throw new FlowException("Account " + account + " is not hosted by this node");
+        }
+        try {
+            return flow.getServiceHub().cordaService(OrderBookService.class).place(side, account, price, quantity);
+        } catch (IllegalStateException e) {
+            throw new FlowException(e.getMessage());
+        }
+    }
+}
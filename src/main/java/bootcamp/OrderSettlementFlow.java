@@ -0,0 +1,294 @@
+package bootcamp;
+
+import bootcamp.token1.Token1Definition;
+import bootcamp.token1.TokenState;
+import bootcamp.token2.Token2Definition;
+import bootcamp.token2.Token2State;
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static bootcamp.TokenEngine.FINALISING;
+import static bootcamp.TokenEngine.RESOLVING_ACCOUNTS;
+import static bootcamp.TokenEngine.SELECTING_STATES;
+import static bootcamp.TokenEngine.SIGNING;
+import static bootcamp.TokenEngine.VERIFYING;
+
+/**
+ * Settles a batch of fills matched by OrderBookService in one transaction: each seller's Token1
+ * goes to its buyers and each buyer's Token2, price times quantity, to its sellers, with change
+ * back to both. Every account trading on the book is hosted here, so this node signs alone and
+ * issuers on other nodes only record the transaction. All inputs have to sit on one notary.
+ */
+@InitiatingFlow
+@StartableByService
+public class OrderSettlementFlow extends TokenEngine.MeteredFlow<String> {
+
+    private final List<Fill> fills;
+
+    public OrderSettlementFlow(List<Fill> fills) {
+        super(new ProgressTracker(RESOLVING_ACCOUNTS, SELECTING_STATES, VERIFYING, SIGNING, FINALISING));
+        this.fills = fills;
+    }
+
+    @Suspendable
+    @Override
+    protected String run() throws FlowException {
+        AccountCacheService accountCache = getServiceHub().cordaService(AccountCacheService.class);
+
+        getProgressTracker().setCurrentStep(RESOLVING_ACCOUNTS);
+        Map<String, AccountInfo> accounts = new LinkedHashMap<>();
+        List<Payment> token1Payments = new ArrayList<>();
+        List<Payment> token2Payments = new ArrayList<>();
+        for (Fill fill : fills) {
+            for (String account : ImmutableList.of(fill.getBuyer(), fill.getSeller())) {
+                if (!accounts.containsKey(account)) {
+                    StateAndRef<AccountInfo> info = accountCache.findAccountInfo(account);
+                    if (info == null || !info.getState().getData().getHost().equals(getOurIdentity())) {
+                        throw new FlowException("Account " + account + " is not hosted by this node");
+                    }
+                    accounts.put(account, info.getState().getData());
+                }
+            }
+            token1Payments.add(new Payment(fill.getSeller(), fill.getBuyer(), fill.getQuantity()));
+            token2Payments.add(new Payment(fill.getBuyer(), fill.getSeller(), Math.multiplyExact(fill.getPrice(), fill.getQuantity())));
+        }
+
+        getProgressTracker().setCurrentStep(SELECTING_STATES);
+        UUID lockId = getRunId().getUuid();
+        List<StateAndRef<?>> locked = new ArrayList<>();
+        try {
+            Map<String, List<StateAndRef<TokenState>>> token1Inputs =
+                    lockInputs(Token1Definition.INSTANCE, accounts, token1Payments, lockId, locked);
+            Map<String, List<StateAndRef<Token2State>>> token2Inputs =
+                    lockInputs(Token2Definition.INSTANCE, accounts, token2Payments, lockId, locked);
+
+            Set<Party> notaries = new LinkedHashSet<>();
+            Set<Party> issuers = new LinkedHashSet<>();
+            for (StateAndRef<?> input : locked) {
+                notaries.add(input.getState().getNotary());
+                issuers.add(((AccountToken) input.getState().getData()).getIssuer());
+            }
+            if (notaries.size() != 1) {
+                throw new FlowException("Settlement inputs sit on " + notaries.size() + " notaries, settle the fills one by one");
+            }
+
+            Map<UUID, AnonymousParty> ownerKeys = TokenEngine.ownerKeys(this, new ArrayList<>(accounts.values()));
+            SignedTransaction signedTx = TokenEngine.verifyAndSign(this, settlementBuilder(notaries.iterator().next(), accounts,
+                    ownerKeys, token1Inputs, token1Payments, token2Inputs, token2Payments));
+
+            // Issuers elsewhere only record the settlement
+            List<FlowSession> sessions = new ArrayList<>();
+            for (Party issuer : issuers) {
+                if (!issuer.equals(getOurIdentity())) {
+                    sessions.add(initiateFlow(issuer));
+                }
+            }
+            getProgressTracker().setCurrentStep(FINALISING);
+            SignedTransaction stx = subFlow(new FinalityFlow(signedTx, sessions, FINALISING.childProgressTracker()));
+            afterRecording(this, stx);
+
+            return fills.size() + " fills settled\ntxId: " + stx.getId();
+        } catch (FlowException | RuntimeException e) {
+            TokenEngine.releaseStates(getServiceHub(), lockId, locked);
+            throw e;
+        }
+    }
+
+    // Per paying account, enough of its states, largest first, to cover everything it pays in the batch
+    private <T extends AccountToken> Map<String, List<StateAndRef<T>>> lockInputs(TokenDefinition<T> definition, Map<String, AccountInfo> accounts,
+                                                                                List<Payment> payments, UUID lockId,
+                                                                                List<StateAndRef<?>> locked) throws FlowException {
+        Map<String, Long> due = new LinkedHashMap<>();
+        for (Payment payment : payments) {
+            due.merge(payment.payer, payment.amount, Math::addExact);
+        }
+        Map<String, List<StateAndRef<T>>> inputs = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> payer : due.entrySet()) {
+            List<StateAndRef<T>> states = TokenEngine.lockStates(getServiceHub(), definition,
+                    accounts.get(payer.getKey()).getIdentifier().getId(), lockId, Sort.Direction.DESC, payer.getValue(), Integer.MAX_VALUE);
+            locked.addAll(states);
+            long available = 0;
+            for (StateAndRef<T> state : states) {
+                available += state.getState().getData().getAmount();
+            }
+            if (available < payer.getValue()) {
+                throw new FlowException("Unlocked " + definition.getName() + " balance of " + payer.getKey() + " is " + available
+                        + ", below " + payer.getValue());
+            }
+            inputs.put(payer.getKey(), states);
+        }
+        return inputs;
+    }
+
+    private static TransactionBuilder settlementBuilder(Party notary, Map<String, AccountInfo> accounts, Map<UUID, AnonymousParty> ownerKeys,
+                                                        Map<String, List<StateAndRef<TokenState>>> token1Inputs,
+                                                        List<Payment> token1Payments,
+                                                        Map<String, List<StateAndRef<Token2State>>> token2Inputs,
+                                                        List<Payment> token2Payments) {
+        TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+        addLeg(transactionBuilder, Token1Definition.INSTANCE, accounts, ownerKeys, token1Inputs, token1Payments);
+        addLeg(transactionBuilder, Token2Definition.INSTANCE, accounts, ownerKeys, token2Inputs, token2Payments);
+        return transactionBuilder;
+    }
+
+    // Pays each payment out of the payer's issuers in turn, so every issuer's total is conserved, and returns the rest to the payer
+    private static <T extends AccountToken> void addLeg(TransactionBuilder transactionBuilder, TokenDefinition<T> definition,
+                                                        Map<String, AccountInfo> accounts, Map<UUID, AnonymousParty> ownerKeys,
+                                                        Map<String, List<StateAndRef<T>>> inputs, List<Payment> payments) {
+        Set<PublicKey> signers = new LinkedHashSet<>();
+        Map<String, Map<Party, Long>> balances = new LinkedHashMap<>();
+        for (Map.Entry<String, List<StateAndRef<T>>> payer : inputs.entrySet()) {
+            Map<Party, Long> balance = new LinkedHashMap<>();
+            for (StateAndRef<T> input : payer.getValue()) {
+                transactionBuilder.addInputState(input);
+                signers.add(input.getState().getData().getOwner().getOwningKey());
+                balance.merge(input.getState().getData().getIssuer(), input.getState().getData().getAmount(), Long::sum);
+            }
+            balances.put(payer.getKey(), balance);
+        }
+
+        // Issuer -> receiving account -> amount, one output each
+        Map<Party, Map<String, Long>> credits = new LinkedHashMap<>();
+        for (Payment payment : payments) {
+            long left = payment.amount;
+            for (Map.Entry<Party, Long> issuer : balances.get(payment.payer).entrySet()) {
+                long paid = Math.min(left, issuer.getValue());
+                if (paid == 0) continue;
+                issuer.setValue(issuer.getValue() - paid);
+                credits.computeIfAbsent(issuer.getKey(), it -> new LinkedHashMap<>()).merge(payment.payee, paid, Long::sum);
+                left -= paid;
+                if (left == 0) break;
+            }
+        }
+        for (Map.Entry<String, Map<Party, Long>> payer : balances.entrySet()) {
+            for (Map.Entry<Party, Long> change : payer.getValue().entrySet()) {
+                if (change.getValue() > 0) {
+                    credits.computeIfAbsent(change.getKey(), it -> new LinkedHashMap<>()).merge(payer.getKey(), change.getValue(), Long::sum);
+                }
+            }
+        }
+
+        for (Map.Entry<Party, Map<String, Long>> issuer : credits.entrySet()) {
+            for (Map.Entry<String, Long> credit : issuer.getValue().entrySet()) {
+                UUID accountId = accounts.get(credit.getKey()).getIdentifier().getId();
+                AnonymousParty ownerKey = ownerKeys.get(accountId);
+                transactionBuilder.addOutputState(definition.create(issuer.getKey(), ownerKey, accountId, credit.getValue()));
+                signers.add(ownerKey.getOwningKey());
+            }
+        }
+        transactionBuilder.addCommand(definition.settleCommand(), ImmutableList.copyOf(signers));
+    }
+
+    // Both legs may push a backchain past the reissue threshold
+    private static void afterRecording(FlowLogic<?> flow, SignedTransaction stx) {
+        ReissuePolicyService policy = flow.getServiceHub().cordaService(ReissuePolicyService.class);
+        policy.afterRecording(flow.getServiceHub(), Token1Definition.INSTANCE, stx);
+        policy.afterRecording(flow.getServiceHub(), Token2Definition.INSTANCE, stx);
+    }
+
+    /**
+     * One trade matched by the order book: quantity Token1 from seller to buyer for price Token2
+     * each. matchedAtNanos is System.nanoTime() at matching, for the settlement lag.
+     */
+    public static final class Fill {
+
+        private final long buyOrderId;
+        private final String buyer;
+        private final long sellOrderId;
+        private final String seller;
+        private final long price;
+        private final long quantity;
+        private final long matchedAtNanos;
+
+        public Fill(long buyOrderId, String buyer, long sellOrderId, String seller, long price, long quantity, long matchedAtNanos) {
+            this.buyOrderId = buyOrderId;
+            this.buyer = buyer;
+            this.sellOrderId = sellOrderId;
+            this.seller = seller;
+            this.price = price;
+            this.quantity = quantity;
+            this.matchedAtNanos = matchedAtNanos;
+        }
+
+        public long getBuyOrderId() {
+            return buyOrderId;
+        }
+
+        public String getBuyer() {
+            return buyer;
+        }
+
+        public long getSellOrderId() {
+            return sellOrderId;
+        }
+
+        public String getSeller() {
+            return seller;
+        }
+
+        public long getPrice() {
+            return price;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+
+        public long getMatchedAtNanos() {
+            return matchedAtNanos;
+        }
+
+        @Override
+        public String toString() {
+            return quantity + " Token1 at " + price + " from " + seller + " (order " + sellOrderId + ") to " + buyer + " (order " + buyOrderId + ")";
+        }
+    }
+
+    private static final class Payment {
+
+        private final String payer;
+        private final String payee;
+        private final long amount;
+
+        private Payment(String payer, String payee, long amount) {
+            this.payer = payer;
+            this.payee = payee;
+            this.amount = amount;
+        }
+    }
+
+    @InitiatedBy(OrderSettlementFlow.class)
+    public static class Responder extends FlowLogic<Void> {
+
+        private final FlowSession otherSide;
+
+        public Responder(FlowSession otherSide) {
+            this.otherSide = otherSide;
+        }
+
+        @Override
+        @Suspendable
+        public Void call() throws FlowException {
+            afterRecording(this, subFlow(new ReceiveFinalityFlow(otherSide)));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package bootcamp;
+
+import bootcamp.token1.Token1Definition;
+import bootcamp.token2.Token2Definition;
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.FieldInfo;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Returns the unconsumed Token1 and Token2 balance of each account, summed by the node database.
+ * An empty account list returns the balance of every account holding tokens in this vault.
+ */
+@StartableByRPC
+public class QueryBalanceByAccount extends FlowLogic<Map<String, Map<String, Long>>> {
+
+    private final List<String> accounts;
+
+    public QueryBalanceByAccount(List<String> accounts) {
+        this.accounts = accounts;
+    }
+
+    @Override
+    @Suspendable
+    public Map<String, Map<String, Long>> call() throws FlowException {
+        AccountCacheService accountCache = getServiceHub().cordaService(AccountCacheService.class);
+
+        List<UUID> accountIds = new ArrayList<>();
+        for (String account : accounts) {
+            accountIds.add(accountCache.accountInfo(account).getState().getData().getIdentifier().getId());
+        }
+
+        Map<String, Map<String, Long>> balances = new LinkedHashMap<>();
+        sumByAccount(balances, Token1Definition.INSTANCE, accountIds);
+        sumByAccount(balances, Token2Definition.INSTANCE, accountIds);
+        return balances;
+    }
+
+    private void sumByAccount(Map<String, Map<String, Long>> balances, TokenDefinition<?> definition, List<UUID> accountIds) {
+        FieldInfo amount = QueryCriteriaUtils.getField("amount", definition.getSchemaClass());
+        FieldInfo ownerAccountId = QueryCriteriaUtils.getField("ownerAccountId", definition.getSchemaClass());
+
+        QueryCriteria criteria = new QueryCriteria.VaultCustomQueryCriteria(Builder.sum(amount, ImmutableList.of(ownerAccountId)));
+        if (!accountIds.isEmpty()) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.in(ownerAccountId, accountIds)));
+        }
+
+        // Aggregate results come back flattened as [sum, ownerAccountId, sum, ownerAccountId, ...]
+        List<Object> results = getServiceHub().getVaultService().queryBy(definition.getStateClass(), criteria).getOtherResults();
+        for (int i = 0; i + 1 < results.size(); i += 2) {
+            long total = ((Number) results.get(i)).longValue();
+            String account = accountName((UUID) results.get(i + 1));
+            balances.computeIfAbsent(account, it -> new LinkedHashMap<>()).merge(definition.getName(), total, Long::sum);
+        }
+    }
+
+    private String accountName(UUID accountId) {
+        if (accountId == null) {
+            return "unknown";
+        }
+        StateAndRef<AccountInfo> account = getServiceHub().cordaService(AccountCacheService.class).accountInfo(accountId);
+        return account == null ? accountId.toString() : account.getState().getData().getName();
+    }
+}
@@ -1,128 +1,210 @@
 package bootcamp;
 
-import bootcamp.token1.TokenState;
-import bootcamp.token2.Token2State;
+import bootcamp.token1.Token1Definition;
+import bootcamp.token2.Token2Definition;
 import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
 import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
-import com.r3.corda.lib.accounts.workflows.UtilitiesKt;
 import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
 import net.corda.core.flows.FlowException;
 import net.corda.core.flows.FlowLogic;
 import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
 import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.serialization.CordaSerializable;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
 @StartableByRPC
 public class QueryByAccount {
-    public static class QueryByAccountToken1 extends FlowLogic<String> {
+
+    // Page number that asks for every page of the account's states
+    public static final int ALL_PAGES = 0;
+    public static final int DEFAULT_PAGE_SIZE = 200;
+
+    @StartableByRPC
+    public static class QueryByAccountToken1 extends FlowLogic<AccountTokens> {
 
         private final String whoAmI;
+        private final int pageNumber;
+        private final int pageSize;
 
         public QueryByAccountToken1(String whoAmI) {
+            this(whoAmI, ALL_PAGES, DEFAULT_PAGE_SIZE);
+        }
+
+        public QueryByAccountToken1(String whoAmI, int pageNumber, int pageSize) {
             this.whoAmI = whoAmI;
+            this.pageNumber = pageNumber;
+            this.pageSize = pageSize;
         }
 
         @Override
         @Suspendable
-        public String call() throws FlowException {
-            AccountInfo myAccount = UtilitiesKt.getAccountService(this).accountInfo(whoAmI).get(0).getState().getData();
-            UUID id = myAccount.getIdentifier().getId();
-            QueryCriteria.VaultQueryCriteria criteria = new QueryCriteria.VaultQueryCriteria().withExternalIds(Arrays.asList(id));
-
-            List<StateAndRef<TokenState>> tokenList = getServiceHub().getVaultService().queryBy(TokenState.class).getStates();
-
-            String output = "";
+        public AccountTokens call() throws FlowException {
+            AccountInfo myAccount = getServiceHub().cordaService(AccountCacheService.class).accountInfo(whoAmI).getState().getData();
+            return queryAccount(getServiceHub(), myAccount, Token1Definition.INSTANCE, pageNumber, pageSize);
+        }
+    }
 
-            if(tokenList.size() > 0 ) {
-                TokenState tokenState = tokenList.get(0).getState().getData();
-                if(tokenState != null) {
 
-                    Party issuerParty = getServiceHub().getIdentityService().wellKnownPartyFromAnonymous(tokenState.getIssuer());
-                    Party ownerParty = getServiceHub().getIdentityService().wellKnownPartyFromAnonymous(tokenState.getOwner());
+    @StartableByRPC
+    public static class QueryByAccountToken2 extends FlowLogic<AccountTokens> {
 
-                    if(issuerParty == null) {
-                        output = "Issuer Key to account mapping is not available with this node. Please use SyncKeyMApping or ShareStateWithAccounts flows to sync the mappings";
-                        output = output+ " Amount is : " + tokenState.getAmount()
-                                + " Owner is : " + UtilitiesKt.getAccountService(this).accountInfo(tokenState.getOwner().getOwningKey()).getState().getData().getName();
+        private final String whoAmI;
+        private final int pageNumber;
+        private final int pageSize;
 
+        public QueryByAccountToken2(String whoAmI) {
+            this(whoAmI, ALL_PAGES, DEFAULT_PAGE_SIZE);
+        }
 
-                    } else if(ownerParty == null) {
-                        output = "Owner Key to account mapping is not available with this node. Please use SyncKeyMApping or ShareStateWithAccounts flows to sync the mappings";
-                        output = output+ " Amount is : " + tokenState.getAmount()
-                                + " Issuer is : " + UtilitiesKt.getAccountService(this).accountInfo(tokenState.getIssuer().getOwningKey()).getState().getData().getName();
-                    }
+        public QueryByAccountToken2(String whoAmI, int pageNumber, int pageSize) {
+            this.whoAmI = whoAmI;
+            this.pageNumber = pageNumber;
+            this.pageSize = pageSize;
+        }
 
-                    if(issuerParty != null && ownerParty != null) {
-                        output = output+ " \nAmount is : " + tokenState.getAmount()
-                                + " Issuer is : " + UtilitiesKt.getAccountService(this).accountInfo(tokenState.getIssuer().getOwningKey()).getState().getData().getName()
-                                + " Owner is : " + UtilitiesKt.getAccountService(this).accountInfo(tokenState.getOwner().getOwningKey()).getState().getData().getName();
-                    }
-                }
+        @Override
+        @Suspendable
+        public AccountTokens call() throws FlowException {
+            AccountInfo myAccount = getServiceHub().cordaService(AccountCacheService.class).accountInfo(whoAmI).getState().getData();
+            return queryAccount(getServiceHub(), myAccount, Token2Definition.INSTANCE, pageNumber, pageSize);
+        }
+    }
 
-            } else {
-                output = "No TokenState mapped to this account on this node. So either this account is not a participant or account to key mapping is not known to this node.Please use SyncKeyMApping or ShareStateWithAccounts flows to sync the mappings";
+    /**
+     * Queries the unconsumed states of one account, either a single page or every page in turn.
+     * States owned through account keys match on externalId; states owned by the host key match
+     * on the ownerAccountId column of the token schema.
+     */
+    private static <T extends AccountToken> AccountTokens queryAccount(ServiceHub serviceHub, AccountInfo account, TokenDefinition<T> definition,
+                                                                      int pageNumber, int pageSize) throws FlowException {
+        if (pageNumber < ALL_PAGES || pageSize <= 0) {
+            throw new FlowException("Page number must not be negative and page size must be positive");
+        }
 
+        UUID id = account.getIdentifier().getId();
+        QueryCriteria externalIdCriteria = new QueryCriteria.VaultQueryCriteria().withExternalIds(Collections.singletonList(id));
+        QueryCriteria ownerAccountCriteria = new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(
+                QueryCriteriaUtils.getField("ownerAccountId", definition.getSchemaClass()), id));
+        QueryCriteria criteria = externalIdCriteria.or(ownerAccountCriteria);
+
+        // Oldest first, with the state ref as a tie-break so pages are stable
+        Sort sort = new Sort(ImmutableList.of(
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC),
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF), Sort.Direction.ASC)));
+
+        List<TokenHolding> holdings = new ArrayList<>();
+        int page = pageNumber == ALL_PAGES ? 1 : pageNumber;
+        long totalStates;
+        do {
+            Vault.Page<T> results = serviceHub.getVaultService().queryBy(definition.getStateClass(), criteria, new PageSpecification(page, pageSize), sort);
+            totalStates = results.getTotalStatesAvailable();
+            for (StateAndRef<T> stateAndRef : results.getStates()) {
+                T token = stateAndRef.getState().getData();
+                holdings.add(new TokenHolding(stateAndRef.getRef(), token.getIssuer(), token.getOwner(), token.getAmount()));
             }
-            return output;
-        }
+            page++;
+        } while (pageNumber == ALL_PAGES && (long) (page - 1) * pageSize < totalStates);
+
+        return new AccountTokens(account.getName(), id, definition.getName(), holdings, totalStates);
     }
 
+    @CordaSerializable
+    public static class TokenHolding {
 
-    @StartableByRPC
-    public static class QueryByAccountToken2 extends FlowLogic<String> {
+        private final StateRef ref;
+        private final Party issuer;
+        private final AbstractParty owner;
+        private final long amount;
 
-        private final String whoAmI;
-        public QueryByAccountToken2(String whoAmI) {
-            this.whoAmI = whoAmI;
+        public TokenHolding(StateRef ref, Party issuer, AbstractParty owner, long amount) {
+            this.ref = ref;
+            this.issuer = issuer;
+            this.owner = owner;
+            this.amount = amount;
         }
 
-        @Override
-        @Suspendable
-        public String call() throws FlowException {
-            AccountInfo myAccount = UtilitiesKt.getAccountService(this).accountInfo(whoAmI).get(0).getState().getData();
-            UUID id = myAccount.getIdentifier().getId();
-            QueryCriteria.VaultQueryCriteria criteria = new QueryCriteria.VaultQueryCriteria().withExternalIds(Arrays.asList(id));
+        public StateRef getRef() {
+            return ref;
+        }
 
-            List<StateAndRef<Token2State>> token2List = getServiceHub().getVaultService().queryBy(Token2State.class).getStates();
+        public Party getIssuer() {
+            return issuer;
+        }
 
-            String output = "";
+        public AbstractParty getOwner() {
+            return owner;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
 
-            if(token2List.size() > 0 ) {
-                Token2State token2State = token2List.get(0).getState().getData();
-                if(token2State != null) {
+        @Override
+        public String toString() {
+            return "Amount is : " + amount + " Issuer is : " + issuer + " Owner is : " + owner + " Ref is : " + ref;
+        }
+    }
 
-                    Party issuerParty = getServiceHub().getIdentityService().wellKnownPartyFromAnonymous(token2State.getIssuer());
-                    Party ownerParty = getServiceHub().getIdentityService().wellKnownPartyFromAnonymous(token2State.getOwner());
+    @CordaSerializable
+    public static class AccountTokens {
+
+        private final String account;
+        private final UUID accountId;
+        private final String tokenType;
+        private final List<TokenHolding> holdings;
+        private final long totalStates;
+
+        public AccountTokens(String account, UUID accountId, String tokenType, List<TokenHolding> holdings, long totalStates) {
+            this.account = account;
+            this.accountId = accountId;
+            this.tokenType = tokenType;
+            this.holdings = holdings;
+            this.totalStates = totalStates;
+        }
 
-                    if(issuerParty == null) {
-                        output = "Issuer Key to account mapping is not available with this node. Please use SyncKeyMApping or ShareStateWithAccounts flows to sync the mappings";
-                        output = output+ " Amount is : " + token2State.getAmount()
-                                + " Owner is : " + UtilitiesKt.getAccountService(this).accountInfo(token2State.getOwner().getOwningKey()).getState().getData().getName();
+        public String getAccount() {
+            return account;
+        }
 
+        public UUID getAccountId() {
+            return accountId;
+        }
 
-                    } else if(ownerParty == null) {
-                        output = "Owner Key to account mapping is not available with this node. Please use SyncKeyMApping or ShareStateWithAccounts flows to sync the mappings";
-                        output = output+ " Amount is : " + token2State.getAmount()
-                                + " Issuer is : " + UtilitiesKt.getAccountService(this).accountInfo(token2State.getIssuer().getOwningKey()).getState().getData().getName();
-                    }
+        public String getTokenType() {
+            return tokenType;
+        }
 
-                    if(issuerParty != null && ownerParty != null) {
-                        output = output+ " \nAmount is : " + token2State.getAmount()
-                                + " Issuer is : " + UtilitiesKt.getAccountService(this).accountInfo(token2State.getIssuer().getOwningKey()).getState().getData().getName()
-                                + " Owner is : " + UtilitiesKt.getAccountService(this).accountInfo(token2State.getOwner().getOwningKey()).getState().getData().getName();
-                    }
-                }
+        public List<TokenHolding> getHoldings() {
+            return holdings;
+        }
 
-            } else {
-                output = "No Token2State mapped to this account on this node. So either this account is not a participant or account to key mapping is not known to this node.Please use SyncKeyMApping or ShareStateWithAccounts flows to sync the mappings";
+        // Number of matching states in the vault, which can exceed holdings when a single page was requested
+        public long getTotalStates() {
+            return totalStates;
+        }
 
+        @Override
+        public String toString() {
+            StringBuilder output = new StringBuilder(account + " holds " + totalStates + " " + tokenType + " States");
+            for (TokenHolding holding : holdings) {
+                output.append("\n").append(holding);
             }
-            return output;
+            return output.toString();
         }
     }
 }
-
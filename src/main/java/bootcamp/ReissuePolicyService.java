@@ -0,0 +1,174 @@
+package bootcamp;
+
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import kotlin.Unit;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides when token states have a backchain long enough to be worth reissuing. The depth of a
+ * transaction is 0 without inputs, otherwise one more than its deepest input's; a state's depth is
+ * that of the transaction that created it. Depths are cached, so each recorded transaction only
+ * looks at its inputs' transactions.
+ *
+ * After every token transaction this node finalises or records, accounts hosted here that got a
+ * state at or past the threshold get a reissue flow started in the background.
+ *
+ * Configured through the CorDapp config:
+ * - reissueChainDepth: depth that triggers a reissue, 100 by default; 0 turns the trigger off
+ */
+@CordaService
+public class ReissuePolicyService extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReissuePolicyService.class);
+
+    private static final String DEPTH_KEY = "reissueChainDepth";
+    private static final int DEFAULT_DEPTH = 100;
+    // States reissued per background run
+    private static final int BATCH_SIZE = 50;
+    private static final int CACHE_SIZE = 100_000;
+
+    private final AppServiceHub serviceHub;
+    private final int threshold;
+    private final Map<SecureHash, Integer> depths = Collections.synchronizedMap(new LinkedHashMap<SecureHash, Integer>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SecureHash, Integer> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+    private final ExecutorService starter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "reissue-policy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ReissuePolicyService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.threshold = config.exists(DEPTH_KEY) ? config.getInt(DEPTH_KEY) : DEFAULT_DEPTH;
+        // The executor would otherwise outlive the node
+        serviceHub.registerUnloadHandler(() -> {
+            starter.shutdownNow();
+            return Unit.INSTANCE;
+        });
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Depth of the transaction's backchain, as far as it is in our transaction storage. Must be
+     * called from a flow.
+     */
+    public int depth(ServiceHub flowServiceHub, SecureHash txId) {
+        Integer known = depths.get(txId);
+        if (known != null) return known;
+
+        // Iterative, chains are far deeper than the stack; the walk keeps its own results so cache evictions can't loop it
+        Map<SecureHash, Integer> walked = new HashMap<>();
+        Deque<SecureHash> pending = new ArrayDeque<>();
+        pending.push(txId);
+        while (!pending.isEmpty()) {
+            SecureHash current = pending.peek();
+            if (walked.containsKey(current)) {
+                pending.pop();
+                continue;
+            }
+            SignedTransaction stx = flowServiceHub.getValidatedTransactions().getTransaction(current);
+            int deepest = -1;
+            boolean ready = true;
+            if (stx != null) {
+                for (StateRef input : stx.getInputs()) {
+                    Integer inputDepth = walked.containsKey(input.getTxhash()) ? walked.get(input.getTxhash()) : depths.get(input.getTxhash());
+                    if (inputDepth == null) {
+                        pending.push(input.getTxhash());
+                        ready = false;
+                    } else {
+                        deepest = Math.max(deepest, inputDepth);
+                    }
+                }
+            }
+            if (ready) {
+                walked.put(current, deepest + 1);
+                depths.put(current, deepest + 1);
+                pending.pop();
+            }
+        }
+        return walked.get(txId);
+    }
+
+    /**
+     * Starts a reissue for every account hosted here that owns an output of the finalised
+     * transaction, when the transaction is at or past the threshold. Must be called from a flow.
+     */
+    public void afterRecording(ServiceHub flowServiceHub, TokenDefinition<?> definition, SignedTransaction stx) {
+        if (threshold <= 0 || stx.getInputs().isEmpty() || depth(flowServiceHub, stx.getId()) < threshold) return;
+
+        Map<PublicKey, UUID> owners = new LinkedHashMap<>();
+        for (ContractState output : stx.getTx().getOutputStates()) {
+            if (definition.getStateClass().isInstance(output)) {
+                AccountToken token = (AccountToken) output;
+                owners.put(token.getOwner().getOwningKey(), token.getOwnerAccountId());
+            }
+        }
+        Set<UUID> accounts = new LinkedHashSet<>();
+        for (PublicKey ours : flowServiceHub.getKeyManagementService().filterMyKeys(owners.keySet())) {
+            accounts.add(owners.get(ours));
+        }
+        AccountCacheService accountCache = flowServiceHub.cordaService(AccountCacheService.class);
+        for (UUID accountId : accounts) {
+            StateAndRef<AccountInfo> account = accountCache.accountInfo(accountId);
+            if (account != null) {
+                schedule(definition, account.getState().getData().getName());
+            }
+        }
+    }
+
+    // One background run per token and account at a time
+    private void schedule(TokenDefinition<?> definition, String owner) {
+        String key = definition.getName() + ":" + owner;
+        if (!running.add(key)) return;
+        starter.execute(() -> {
+            try {
+                serviceHub.startFlow(definition.reissueFlow(owner, threshold, BATCH_SIZE)).getReturnValue().toCompletableFuture()
+                        .whenComplete((result, error) -> {
+                            running.remove(key);
+                            if (error != null) {
+                                logger.warn("Reissue of " + key + " failed", error);
+                            } else {
+                                logger.info(result);
+                            }
+                        });
+            } catch (RuntimeException e) {
+                running.remove(key);
+                logger.warn("Could not start the reissue of " + key, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,124 @@
+package bootcamp;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.CryptoUtils;
+import net.corda.core.crypto.DigitalSignature;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.IdentityService;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Asks the host of some accounts for a new anonymous key of each, in one round trip, and
+ * registers the keys to the host and the accounts here. The host answers from its
+ * AccountKeyPoolService, so no key is generated while we wait.
+ *
+ * As in the accounts SDK's RequestKeyForAccount, the host proves it holds each key by signing our
+ * random challenge, bound to the key's account, with it. A key that is already registered to
+ * another party or account is refused rather than re-registered.
+ */
+@InitiatingFlow
+public class RequestAccountKeysFlow extends FlowLogic<List<AnonymousParty>> {
+
+    private final Party host;
+    private final List<UUID> accountIds;
+
+    public RequestAccountKeysFlow(Party host, List<UUID> accountIds) {
+        this.host = host;
+        this.accountIds = accountIds;
+    }
+
+    @Override
+    @Suspendable
+    public List<AnonymousParty> call() throws FlowException {
+        SecureHash challenge = SecureHash.randomSHA256();
+        FlowSession session = initiateFlow(host);
+        session.send(challenge);
+        List<AnonymousParty> keys = session.sendAndReceive(List.class, new ArrayList<>(accountIds)).unwrap(received -> {
+            if (received.size() != accountIds.size()) {
+                throw new FlowException("Expected " + accountIds.size() + " keys from " + host + ", got " + received.size());
+            }
+            List<AnonymousParty> checked = new ArrayList<>();
+            for (int i = 0; i < received.size(); i++) {
+                if (!(received.get(i) instanceof DigitalSignature.WithKey)) {
+                    throw new FlowException("Expected signed keys from " + host);
+                }
+                DigitalSignature.WithKey signature = (DigitalSignature.WithKey) received.get(i);
+                if (!signedChallenge(signature, challenge, accountIds.get(i))) {
+                    throw new FlowException("Key " + CryptoUtils.toStringShort(signature.getBy()) + " from " + host
+                            + " did not sign our challenge for account " + accountIds.get(i));
+                }
+                checked.add(new AnonymousParty(signature.getBy()));
+            }
+            return checked;
+        });
+        IdentityService identityService = getServiceHub().getIdentityService();
+        for (int i = 0; i < keys.size(); i++) {
+            PublicKey key = keys.get(i).getOwningKey();
+            Party registered = identityService.partyFromKey(key);
+            if (registered == null) {
+                identityService.registerKey(key, host, accountIds.get(i));
+            } else if (!registered.equals(host) || !accountIds.get(i).equals(identityService.externalIdForPublicKey(key))) {
+                throw new FlowException("Key " + CryptoUtils.toStringShort(key) + " from " + host + " is already registered to "
+                        + registered + " account " + identityService.externalIdForPublicKey(key));
+            }
+        }
+        return keys;
+    }
+
+    @InitiatedBy(RequestAccountKeysFlow.class)
+    public static class Responder extends FlowLogic<Void> {
+
+        private final FlowSession otherSide;
+
+        public Responder(FlowSession otherSide) {
+            this.otherSide = otherSide;
+        }
+
+        @Override
+        @Suspendable
+        public Void call() throws FlowException {
+            AccountCacheService accountCache = getServiceHub().cordaService(AccountCacheService.class);
+            AccountKeyPoolService keyPool = getServiceHub().cordaService(AccountKeyPoolService.class);
+
+            SecureHash challenge = otherSide.receive(SecureHash.class).unwrap(it -> it);
+            List<DigitalSignature.WithKey> keys = new ArrayList<>();
+            for (Object id : otherSide.receive(List.class).unwrap(it -> it)) {
+                if (!(id instanceof UUID)) {
+                    throw new FlowException("Expected account ids");
+                }
+                // Only hand out keys of accounts we host
+                StateAndRef<AccountInfo> account = accountCache.accountInfo((UUID) id);
+                if (account == null || !account.getState().getData().getHost().equals(getOurIdentity())) {
+                    throw new FlowException("Account " + id + " is not hosted by this node");
+                }
+                PublicKey key = keyPool.take((UUID) id);
+                keys.add(getServiceHub().getKeyManagementService().sign(signedBytes(challenge, (UUID) id), key));
+            }
+            otherSide.send(keys);
+            return null;
+        }
+    }
+
+    private static boolean signedChallenge(DigitalSignature.WithKey signature, SecureHash challenge, UUID accountId) {
+        try {
+            return signature.isValid(signedBytes(challenge, accountId));
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    // What the host signs with a key: the challenge bound to the account the key is for
+    private static byte[] signedBytes(SecureHash challenge, UUID accountId) {
+        return challenge.concatenate(SecureHash.sha256(accountId.toString())).getBytes();
+    }
+}
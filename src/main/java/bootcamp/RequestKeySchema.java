@@ -0,0 +1,6 @@
+package bootcamp;
+
+/**
+ * The family of schemas for idempotency keys of the token flows.
+ */
+public class RequestKeySchema { }
@@ -0,0 +1,77 @@
+package bootcamp;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.Instant;
+
+/**
+ * Idempotency keys of issuance and swap requests, one row per key. Not a vault state: the rows
+ * are written by the flows through withEntityManager, inside the flow's own database transaction.
+ */
+public class RequestKeySchemaV1 extends MappedSchema {
+
+    public RequestKeySchemaV1() {
+        super(RequestKeySchema.class, 1, ImmutableList.of(PersistentRequestKey.class));
+    }
+
+    @Entity
+    @Table(name = "token_request_keys", indexes = {
+            @Index(name = "token_request_tx_idx", columnList = "tx_id"),
+            @Index(name = "token_request_run_idx", columnList = "run_id")
+    })
+    public static class PersistentRequestKey {
+        @Id @Column(name = "request_key", length = RequestKeys.MAX_KEY_LENGTH, nullable = false) private String requestKey;
+        @Column(name = "flow_name", nullable = false) private String flowName;
+        @Column(name = "run_id", nullable = false) private String runId;
+        // Null until the request's transaction is finalised
+        @Column(name = "tx_id", length = 64) private String txId;
+        // The transaction the claiming run was finalising, until it completes
+        @Column(name = "pending_tx_id", length = 64) private String pendingTxId;
+        @Column(name = "created_at", nullable = false) private Instant createdAt;
+
+        public PersistentRequestKey(String requestKey, String flowName, String runId, Instant createdAt) {
+            this.requestKey = requestKey;
+            this.flowName = flowName;
+            this.runId = runId;
+            this.createdAt = createdAt;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentRequestKey() {
+        }
+
+        public String getRequestKey() {
+            return requestKey;
+        }
+
+        public String getFlowName() {
+            return flowName;
+        }
+
+        public String getRunId() {
+            return runId;
+        }
+
+        public String getTxId() {
+            return txId;
+        }
+
+        public void setTxId(String txId) {
+            this.txId = txId;
+        }
+
+        public String getPendingTxId() {
+            return pendingTxId;
+        }
+
+        public Instant getCreatedAt() {
+            return createdAt;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package bootcamp;
+
+import bootcamp.RequestKeySchemaV1.PersistentRequestKey;
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+
+import java.time.Instant;
+
+/**
+ * Idempotency keys of the issuance and swap flows. A flow started with a key claims it before
+ * building anything and stores its transaction id once finalised, so a client that timed out can
+ * start the flow again with the same key and gets the original transaction id back instead of a
+ * second issuance or swap.
+ *
+ * The claim is written in the flow's database transaction and committed with its first
+ * checkpoint, so it cannot be dropped again when the flow fails: that rolls back to the last
+ * checkpoint. Instead a retry finds out whether the run holding the key still exists. One that is
+ * still going, with a checkpoint in node_checkpoints, fails the retry with "still in progress";
+ * one that ended without completing the key hands it over to the retry, unless the transaction it
+ * was finalising made it into transaction storage, whose id is then returned. A retry that races
+ * another to a new key fails on the key's primary key.
+ */
+public final class RequestKeys {
+
+    public static final int MAX_KEY_LENGTH = 128;
+
+    private RequestKeys() { }
+
+    /**
+     * Claims key for the flow. Returns null if the flow should go ahead, or the id of the
+     * transaction an earlier run with the same key finalised.
+     */
+    @Suspendable
+    static SecureHash claim(FlowLogic<?> flow, String key) throws FlowException {
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            throw new FlowException("Idempotency key must be 1 to " + MAX_KEY_LENGTH + " characters");
+        }
+        String flowName = flow.getClass().getSimpleName();
+        String runId = flow.getRunId().getUuid().toString();
+        PersistentRequestKey existing = flow.getServiceHub().withEntityManager(entityManager -> {
+            return entityManager.find(PersistentRequestKey.class, key);
+        });
+        if (existing == null) {
+            flow.getServiceHub().withEntityManager(entityManager -> {
+                entityManager.persist(new PersistentRequestKey(key, flowName, runId, Instant.now()));
+                entityManager.flush();
+            });
+            return null;
+        }
+        if (!existing.getFlowName().equals(flowName)) {
+            throw new FlowException("Idempotency key " + key + " was already used by " + existing.getFlowName());
+        }
+        if (existing.getTxId() != null) {
+            return SecureHash.parse(existing.getTxId());
+        }
+        // Our own claim, seen again after a restart from a checkpoint
+        if (existing.getRunId().equals(runId)) {
+            return null;
+        }
+        if (running(flow, existing.getRunId())) {
+            throw new FlowException("Request " + key + " is still in progress in flow " + existing.getRunId() + ", retry later");
+        }
+        // The earlier run failed, possibly after its transaction was notarised and recorded
+        if (existing.getPendingTxId() != null) {
+            SecureHash pending = SecureHash.parse(existing.getPendingTxId());
+            if (flow.getServiceHub().getValidatedTransactions().getTransaction(pending) != null) {
+                complete(flow, key, pending);
+                return pending;
+            }
+        }
+        int taken = flow.getServiceHub().withEntityManager(entityManager -> {
+            return entityManager.createQuery("update PersistentRequestKey k set k.runId = :runId, k.pendingTxId = null"
+                    + " where k.requestKey = :key and k.runId = :previous and k.txId is null")
+                    .setParameter("runId", runId)
+                    .setParameter("key", key)
+                    .setParameter("previous", existing.getRunId())
+                    .executeUpdate();
+        });
+        if (taken != 1) {
+            throw new FlowException("Request " + key + " was taken over by another retry, retry later");
+        }
+        return null;
+    }
+
+    /**
+     * Records the transaction the flow is about to finalise on every key it holds, so a retry
+     * after a failure can tell whether it went through. A single indexed update, matching no rows
+     * for flows started without a key.
+     */
+    @Suspendable
+    static void finalising(FlowLogic<?> flow, SecureHash txId) {
+        String runId = flow.getRunId().getUuid().toString();
+        flow.getServiceHub().withEntityManager(entityManager -> {
+            entityManager.createQuery("update PersistentRequestKey k set k.pendingTxId = :txId where k.runId = :runId and k.txId is null")
+                    .setParameter("txId", txId.toString())
+                    .setParameter("runId", runId)
+                    .executeUpdate();
+        });
+    }
+
+    /**
+     * Stores the finalised transaction of the request, later retries return it.
+     */
+    @Suspendable
+    static void complete(FlowLogic<?> flow, String key, SecureHash txId) {
+        flow.getServiceHub().withEntityManager(entityManager -> {
+            PersistentRequestKey claimed = entityManager.find(PersistentRequestKey.class, key);
+            claimed.setTxId(txId.toString());
+            entityManager.flush();
+        });
+    }
+
+    // A flow keeps a checkpoint until it ends, also while the flow hospital holds it
+    private static boolean running(FlowLogic<?> flow, String runId) {
+        return flow.getServiceHub().withEntityManager(entityManager -> {
+            Number checkpoints = (Number) entityManager.createNativeQuery("select count(*) from node_checkpoints where checkpoint_id = :runId")
+                    .setParameter("runId", runId)
+                    .getSingleResult();
+            return checkpoints.longValue() > 0;
+        });
+    }
+}
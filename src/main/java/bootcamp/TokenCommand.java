@@ -0,0 +1,27 @@
+package bootcamp;
+
+import net.corda.core.contracts.CommandData;
+import net.corda.core.crypto.SecureHash;
+
+/**
+ * Kinds of token commands. Each token contract declares its own commands implementing these,
+ * so AccountTokenContract can apply the same rules to every token type.
+ */
+public interface TokenCommand extends CommandData {
+
+    interface Issue extends TokenCommand { }
+
+    interface Swap extends TokenCommand { }
+
+    interface Exchange extends TokenCommand { }
+
+    // Batched settlement of matched orders, several payers and payees of the token in one transaction
+    interface Settle extends TokenCommand { }
+
+    interface Exit extends TokenCommand { }
+
+    // Issues states again that the exit transaction exitTxId retired, with no history behind them
+    interface Reissue extends TokenCommand {
+        SecureHash getExitTxId();
+    }
+}
@@ -0,0 +1,40 @@
+package bootcamp;
+
+import net.corda.core.contracts.CommandData;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.schemas.PersistentState;
+
+import java.util.UUID;
+
+/**
+ * Binds TokenEngine to one token type: its state, schema, contract commands and reissue flow.
+ */
+public interface TokenDefinition<T extends AccountToken> {
+
+    // Name used in flow results, e.g. "Token1"
+    String getName();
+
+    Class<T> getStateClass();
+
+    Class<? extends PersistentState> getSchemaClass();
+
+    T create(Party issuer, AbstractParty owner, UUID ownerAccountId, long amount);
+
+    CommandData issueCommand();
+
+    CommandData swapCommand();
+
+    CommandData exchangeCommand();
+
+    CommandData settleCommand();
+
+    CommandData exitCommand();
+
+    CommandData reissueCommand(SecureHash exitTxId);
+
+    // The token's @InitiatingFlow reissue flow, so ReissuePolicyService can start it in the background
+    FlowLogic<String> reissueFlow(String owner, int minDepth, int maxStates);
+}
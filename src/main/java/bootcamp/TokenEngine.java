@@ -0,0 +1,1478 @@
+package bootcamp;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.CryptoUtils;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.IdentityService;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.BinaryComparisonOperator;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.ColumnPredicate;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.transactions.WireTransaction;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.core.utilities.ProgressTracker;
+import org.jetbrains.annotations.NotNull;
+
+import java.security.PublicKey;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * Issuance and swap logic shared by every token type. The token packages only declare thin
+ * @InitiatingFlow / @InitiatedBy subclasses that bind these flows to a TokenDefinition.
+ */
+public class TokenEngine {
+
+    // Candidates fetched per selection; enough to get past states other flows lock concurrently
+    private static final int SELECTION_PAGE_SIZE = 20;
+
+    private static final String MAX_AMOUNT_KEY = "maxTokenAmount";
+    private static final long DEFAULT_MAX_AMOUNT = 1_000_000_000L;
+
+    // Progress steps of the issuance, swap and merge flows; issuance skips SELECTING_STATES
+    static final ProgressTracker.Step RESOLVING_ACCOUNTS = new ProgressTracker.Step("Resolving accounts.");
+    static final ProgressTracker.Step SELECTING_STATES = new ProgressTracker.Step("Selecting and locking input states.");
+    static final ProgressTracker.Step VERIFYING = new ProgressTracker.Step("Verifying contract constraints.");
+    static final ProgressTracker.Step SIGNING = new ProgressTracker.Step("Signing transaction.");
+    static final ProgressTracker.Step COLLECTING_SIGNATURES = new ProgressTracker.Step("Collecting counterparty signatures.") {
+        @Override
+        public ProgressTracker childProgressTracker() {
+            return CollectSignaturesFlow.Companion.tracker();
+        }
+    };
+    static final ProgressTracker.Step FINALISING = new ProgressTracker.Step("Notarising and recording transaction.") {
+        @Override
+        public ProgressTracker childProgressTracker() {
+            return FinalityFlow.Companion.tracker();
+        }
+    };
+
+    // Progress steps of the responders
+    static final ProgressTracker.Step COUNTERSIGNING = new ProgressTracker.Step("Checking and signing transaction.");
+    static final ProgressTracker.Step RECORDING = new ProgressTracker.Step("Recording finalised transaction.");
+
+    // Progress step of the reshard flow
+    static final ProgressTracker.Step CHANGING_NOTARY = new ProgressTracker.Step("Moving states to their notary shard.");
+
+    /**
+     * Times every run of the flow as FlowClass.total and counts failures as FlowClass.failed in
+     * FlowMetricsService. Subclasses implement run() instead of call().
+     */
+    public abstract static class MeteredFlow<R> extends FlowLogic<R> {
+
+        private final ProgressTracker progressTracker;
+
+        protected MeteredFlow(ProgressTracker progressTracker) {
+            this.progressTracker = progressTracker;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        protected abstract R run() throws FlowException;
+
+        @Suspendable
+        @Override
+        public R call() throws FlowException {
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+            long start = System.nanoTime();
+            try {
+                R result = run();
+                metrics.record(getClass(), "total", start);
+                return result;
+            } catch (FlowException | RuntimeException e) {
+                metrics.failed(getClass());
+                throw e;
+            }
+        }
+    }
+
+    static ProgressTracker initiatorTracker() {
+        return new ProgressTracker(RESOLVING_ACCOUNTS, SELECTING_STATES, VERIFYING, SIGNING, COLLECTING_SIGNATURES, FINALISING);
+    }
+
+    static ProgressTracker responderTracker() {
+        return new ProgressTracker(COUNTERSIGNING, RECORDING);
+    }
+
+    /**
+     * Issues one state. With a requestKey, a retry of a request that already went through
+     * returns its transaction id instead of issuing again, see RequestKeys.
+     */
+    public abstract static class IssuanceFlow<T extends AccountToken> extends MeteredFlow<String> {
+
+        private final String issuer;
+        private final String owner;
+        private final long amount;
+        private final String requestKey;
+
+        protected IssuanceFlow(String issuer, String owner, long amount) {
+            this(issuer, owner, amount, null);
+        }
+
+        protected IssuanceFlow(String issuer, String owner, long amount, String requestKey) {
+            super(initiatorTracker());
+            this.issuer = issuer;
+            this.owner = owner;
+            this.amount = amount;
+            this.requestKey = requestKey;
+        }
+
+        protected abstract TokenDefinition<T> definition();
+
+        @Suspendable
+        @Override
+        protected String run() throws FlowException {
+            TokenDefinition<T> definition = definition();
+            if (requestKey != null) {
+                SecureHash done = RequestKeys.claim(this, requestKey);
+                if (done != null) {
+                    return definition.getName() + " issuance for request " + requestKey + " already done\ntxId: " + done;
+                }
+            }
+            // A single owner always lands in a single transaction
+            SignedTransaction stx = issue(this, definition, issuer, Collections.singletonList(owner), Collections.singletonList(amount)).get(0);
+            if (requestKey != null) RequestKeys.complete(this, requestKey, stx.getId());
+            return "One " + definition.getName() + " State issued to "+owner+ " from " + issuer+ " with amount: "+amount +"\ntxId: "+ stx.getId() ;
+        }
+    }
+
+    public abstract static class BatchIssuanceFlow<T extends AccountToken> extends MeteredFlow<String> {
+
+        private final String issuer;
+        private final List<String> owners;
+        private final List<Long> amounts;
+        private final int chunkSize;
+
+        protected BatchIssuanceFlow(String issuer, List<String> owners, List<Long> amounts, int chunkSize) {
+            super(initiatorTracker());
+            this.issuer = issuer;
+            this.owners = owners;
+            this.amounts = amounts;
+            this.chunkSize = chunkSize;
+        }
+
+        protected abstract TokenDefinition<T> definition();
+
+        @Suspendable
+        @Override
+        protected String run() throws FlowException {
+
+            if (owners.size() != amounts.size()) {
+                throw new FlowException("Each owner needs exactly one amount");
+            }
+            if (chunkSize <= 0) {
+                throw new FlowException("Chunk size must be positive");
+            }
+
+            TokenDefinition<T> definition = definition();
+            StringBuilder report = new StringBuilder();
+            for (int from = 0; from < owners.size(); from += chunkSize) {
+                report.append("\n").append(issueChunk(definition, from, Math.min(from + chunkSize, owners.size())));
+            }
+
+            return owners.size() + " " + definition.getName() + " States issued from " + issuer + " in chunks of " + chunkSize + report;
+        }
+
+        // One transaction per chunk and notary shard; only the report line is returned, so the chunk's transactions are not carried into the next chunk's checkpoints
+        @Suspendable
+        private String issueChunk(TokenDefinition<T> definition, int from, int to) throws FlowException {
+            long start = System.currentTimeMillis();
+            List<SignedTransaction> stxs = issue(this, definition, issuer, owners.subList(from, to), amounts.subList(from, to));
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            StringJoiner txIds = new StringJoiner(", ");
+            for (SignedTransaction stx : stxs) {
+                txIds.add(stx.getId().toString());
+            }
+            String chunkReport = String.format("Chunk %d: %d %s States in %d ms (%.1f states/s) txId: %s",
+                    from / chunkSize + 1, to - from, definition.getName(), elapsed, (to - from) * 1000.0 / elapsed, txIds);
+            getLogger().info(chunkReport);
+            return chunkReport;
+        }
+    }
+
+    public abstract static class SwapFlow<T extends AccountToken> extends MeteredFlow<String> {
+
+        private final long amount;
+        private final String owner;
+        private final String newOwner;
+        private final String requestKey;
+
+        protected SwapFlow(long amount, String owner, String newOwner) {
+            this(amount, owner, newOwner, null);
+        }
+
+        protected SwapFlow(long amount, String owner, String newOwner, String requestKey) {
+            super(initiatorTracker());
+            this.amount = amount;
+            this.owner = owner;
+            this.newOwner = newOwner;
+            this.requestKey = requestKey;
+        }
+
+        protected abstract TokenDefinition<T> definition();
+
+        @Suspendable
+        @Override
+        protected String run() throws FlowException {
+            TokenDefinition<T> definition = definition();
+            if (requestKey != null) {
+                SecureHash done = RequestKeys.claim(this, requestKey);
+                if (done != null) {
+                    return definition.getName() + " swap for request " + requestKey + " already done\ntxId: " + done;
+                }
+            }
+            SignedTransaction stx = swap(definition);
+            if (requestKey != null) RequestKeys.complete(this, requestKey, stx.getId());
+            return definition.getName() + " swap successful. " + amount + " tokens transferred from " + owner + " to " + newOwner + "\ntxId: "+ stx.getId();
+        }
+
+        @Suspendable
+        private SignedTransaction swap(TokenDefinition<T> definition) throws FlowException {
+            AccountCacheService accountCache = getServiceHub().cordaService(AccountCacheService.class);
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+            //Generate accountinfo for transaction
+            getProgressTracker().setCurrentStep(RESOLVING_ACCOUNTS);
+            long start = System.nanoTime();
+            AccountInfo ownerAccountInfo = accountCache.accountInfo(owner).getState().getData();
+            AccountInfo newOwnerAccountInfo = accountCache.accountInfo(newOwner).getState().getData();
+            metrics.record(getClass(), "resolveAccounts", start);
+
+            Party ownerAccount = ownerAccountInfo.getHost();
+
+            // The swap consumes the owner's states, so it has to be started on the owner's host
+            if (!ownerAccount.equals(getOurIdentity())) {
+                throw new FlowException("Swap must be started on the node hosting " + owner);
+            }
+            if (amount <= 0) {
+                throw new FlowException("Amount must be positive");
+            }
+
+            // Pick and soft lock enough states, largest first, so concurrent swaps for the same owner don't collide at the notary
+            getProgressTracker().setCurrentStep(SELECTING_STATES);
+            start = System.nanoTime();
+            UUID lockId = getRunId().getUuid();
+            List<StateAndRef<T>> inputs = lockStates(getServiceHub(), definition, ownerAccountInfo.getIdentifier().getId(), lockId,
+                    Sort.Direction.DESC, amount, Integer.MAX_VALUE);
+            metrics.record(getClass(), "selectStates", start);
+
+            try {
+                Map<Party, Long> totals = sumByIssuer(inputs);
+                long available = 0;
+                for (long total : totals.values()) {
+                    available += total;
+                }
+                if (available < amount) {
+                    throw new FlowException("Unlocked " + definition.getName() + " balance of " + owner + " is " + available + ", below " + amount);
+                }
+
+                // Fresh keys for the new owner and for the change, so each output is owned by its account alone
+                start = System.nanoTime();
+                Map<UUID, AnonymousParty> ownerKeys = ownerKeys(this, ImmutableList.of(ownerAccountInfo, newOwnerAccountInfo));
+                AnonymousParty ownerKey = ownerKeys.get(ownerAccountInfo.getIdentifier().getId());
+                AnonymousParty newOwnerKey = ownerKeys.get(newOwnerAccountInfo.getIdentifier().getId());
+                metrics.record(getClass(), "resolveKeys", start);
+
+                List<T> outputs = payWithChange(definition, inputs, amount, newOwnerKey, newOwnerAccountInfo.getIdentifier().getId(),
+                        ownerKey, ownerAccountInfo.getIdentifier().getId());
+                return move(this, definition, inputs, outputs);
+            } catch (FlowException | RuntimeException e) {
+                // Let other swaps pick the states up straight away
+                releaseStates(getServiceHub(), lockId, inputs);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Consolidates an account's states into one state per issuer, smallest first, so dust left
+     * behind by change outputs doesn't keep growing the vault.
+     */
+    public abstract static class MergeFlow<T extends AccountToken> extends MeteredFlow<String> {
+
+        private final String owner;
+        private final int maxInputs;
+
+        protected MergeFlow(String owner, int maxInputs) {
+            super(initiatorTracker());
+            this.owner = owner;
+            this.maxInputs = maxInputs;
+        }
+
+        protected abstract TokenDefinition<T> definition();
+
+        @Suspendable
+        @Override
+        protected String run() throws FlowException {
+            TokenDefinition<T> definition = definition();
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+            getProgressTracker().setCurrentStep(RESOLVING_ACCOUNTS);
+            long start = System.nanoTime();
+            AccountInfo ownerAccountInfo = getServiceHub().cordaService(AccountCacheService.class).accountInfo(owner).getState().getData();
+            Party ownerAccount = ownerAccountInfo.getHost();
+            metrics.record(getClass(), "resolveAccounts", start);
+
+            if (!ownerAccount.equals(getOurIdentity())) {
+                throw new FlowException("Merge must be started on the node hosting " + owner);
+            }
+            if (maxInputs < 2) {
+                throw new FlowException("A merge needs at least two inputs");
+            }
+
+            getProgressTracker().setCurrentStep(SELECTING_STATES);
+            start = System.nanoTime();
+            UUID lockId = getRunId().getUuid();
+            List<StateAndRef<T>> inputs = lockMergeInputs(definition, ownerAccountInfo.getIdentifier().getId(), lockId);
+            metrics.record(getClass(), "selectStates", start);
+            if (inputs.isEmpty()) {
+                return "Nothing to merge for " + owner;
+            }
+
+            try {
+                AnonymousParty ownerKey = ownerKeys(this, Collections.singletonList(ownerAccountInfo)).get(ownerAccountInfo.getIdentifier().getId());
+                List<T> outputs = new ArrayList<>();
+                for (Map.Entry<Party, Long> total : sumByIssuer(inputs).entrySet()) {
+                    outputs.add(definition.create(total.getKey(), ownerKey, ownerAccountInfo.getIdentifier().getId(), total.getValue()));
+                }
+
+                SignedTransaction stx = move(this, definition, inputs, outputs);
+
+                return inputs.size() + " " + definition.getName() + " States of " + owner + " merged into " + outputs.size() + "\ntxId: " + stx.getId();
+            } catch (FlowException | RuntimeException e) {
+                releaseStates(getServiceHub(), lockId, inputs);
+                throw e;
+            }
+        }
+
+        // Only issuers with more than one state have anything to merge, the other candidates are released
+        private List<StateAndRef<T>> lockMergeInputs(TokenDefinition<T> definition, UUID accountId, UUID lockId) {
+            List<StateAndRef<T>> candidates = lockStates(getServiceHub(), definition, accountId, lockId,
+                    Sort.Direction.ASC, Long.MAX_VALUE, maxInputs);
+            Map<Party, List<StateAndRef<T>>> byIssuer = new LinkedHashMap<>();
+            for (StateAndRef<T> candidate : candidates) {
+                byIssuer.computeIfAbsent(candidate.getState().getData().getIssuer(), it -> new ArrayList<>()).add(candidate);
+            }
+            List<StateAndRef<T>> inputs = new ArrayList<>();
+            List<StateAndRef<T>> unused = new ArrayList<>();
+            for (List<StateAndRef<T>> states : byIssuer.values()) {
+                (states.size() > 1 ? inputs : unused).addAll(states);
+            }
+            releaseStates(getServiceHub(), lockId, unused);
+            return inputs;
+        }
+    }
+
+    /**
+     * Moves up to batchSize of this node's states that sit off their owner account's notary shard
+     * back onto it, coldest first, one NotaryChangeFlow per state. Only states owned by this node
+     * and recorded at least minAgeSeconds ago are moved, so states in active use stay put.
+     * NotaryChangeFlow signs with a single key of ours, so states that this node both issued and
+     * owns under an account key are left where they are.
+     */
+    public abstract static class ReshardFlow<T extends AccountToken> extends MeteredFlow<String> {
+
+        private final int batchSize;
+        private final long minAgeSeconds;
+        // States skipped because this node both issued and owns them
+        private int pinned;
+
+        protected ReshardFlow(int batchSize, long minAgeSeconds) {
+            super(new ProgressTracker(SELECTING_STATES, CHANGING_NOTARY));
+            this.batchSize = batchSize;
+            this.minAgeSeconds = minAgeSeconds;
+        }
+
+        protected abstract TokenDefinition<T> definition();
+
+        @Suspendable
+        @Override
+        protected String run() throws FlowException {
+            TokenDefinition<T> definition = definition();
+            NotarySelectionService notarySelection = getServiceHub().cordaService(NotarySelectionService.class);
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+            if (notarySelection.getStrategy() != NotarySelectionService.Strategy.HASH) {
+                throw new FlowException("Notary sharding is off, set notarySelection = hash in the CorDapp config");
+            }
+            if (batchSize <= 0) {
+                throw new FlowException("Batch size must be positive");
+            }
+
+            getProgressTracker().setCurrentStep(SELECTING_STATES);
+            long start = System.nanoTime();
+            UUID lockId = getRunId().getUuid();
+            List<StateAndRef<T>> offShard = lockOffShard(definition, notarySelection, lockId);
+            metrics.record(getClass(), "selectStates", start);
+
+            getProgressTracker().setCurrentStep(CHANGING_NOTARY);
+            int moved = 0;
+            List<String> failures = new ArrayList<>();
+            for (StateAndRef<T> state : offShard) {
+                Party shard = notarySelection.notaryFor(state.getState().getData().getOwnerAccountId());
+                start = System.nanoTime();
+                try {
+                    subFlow(new NotaryChangeFlow<>(state, shard, AbstractStateReplacementFlow.Instigator.Companion.tracker()));
+                    metrics.record(getClass(), "notaryChange", start);
+                    moved++;
+                } catch (FlowException | RuntimeException e) {
+                    // Leave it for the next run, the other states can still move
+                    releaseState(getServiceHub(), lockId, state);
+                    failures.add(state.getRef() + ": " + e.getMessage());
+                }
+            }
+
+            return moved + " " + definition.getName() + " States moved to their notary shard"
+                    + (pinned == 0 ? "" : ", " + pinned + " issued and owned here left in place")
+                    + (failures.isEmpty() ? "" : ", " + failures.size() + " failed:\n" + String.join("\n", failures));
+        }
+
+        // Collects the whole batch first, changing notaries while paging would shift the pages; the pages stay out of the notary change checkpoints
+        private List<StateAndRef<T>> lockOffShard(TokenDefinition<T> definition, NotarySelectionService notarySelection, UUID lockId) {
+            Instant cutoff = getServiceHub().getClock().instant().minusSeconds(minAgeSeconds);
+            QueryCriteria criteria = unlockedCriteria(lockId)
+                    .and(new QueryCriteria.VaultQueryCriteria().withTimeCondition(new QueryCriteria.TimeCondition(
+                            QueryCriteria.TimeInstantType.RECORDED,
+                            new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.LESS_THAN, cutoff))));
+            Sort sort = new Sort(ImmutableList.of(new Sort.SortColumn(
+                    new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC)));
+
+            List<StateAndRef<T>> offShard = new ArrayList<>();
+            for (int page = 1; offShard.size() < batchSize; page++) {
+                Vault.Page<T> results = getServiceHub().getVaultService().queryBy(definition.getStateClass(), criteria,
+                        new PageSpecification(page, SELECTION_PAGE_SIZE), sort);
+                for (StateAndRef<T> candidate : results.getStates()) {
+                    T token = candidate.getState().getData();
+                    Party shard = notarySelection.notaryFor(token.getOwnerAccountId());
+                    if (offShard.size() >= batchSize) break;
+                    if (shard.equals(candidate.getState().getNotary())) continue;
+                    Set<PublicKey> ourKeys = ImmutableSet.copyOf(getServiceHub().getKeyManagementService().filterMyKeys(
+                            ImmutableSet.of(token.getIssuer().getOwningKey(), token.getOwner().getOwningKey())));
+                    if (!ourKeys.contains(token.getOwner().getOwningKey())) continue;
+                    if (ourKeys.size() > 1) {
+                        pinned++;
+                        continue;
+                    }
+                    try {
+                        getServiceHub().getVaultService().softLockReserve(lockId, NonEmptySet.of(candidate.getRef()));
+                    } catch (StatesNotAvailableException e) {
+                        continue;
+                    }
+                    offShard.add(candidate);
+                }
+                if ((long) page * SELECTION_PAGE_SIZE >= results.getTotalStatesAvailable()) break;
+            }
+            return offShard;
+        }
+    }
+
+    /**
+     * Reissues up to maxStates of an account's states whose backchain is at least minDepth deep.
+     * Per issuer, an exit transaction retires them, then a reissue transaction without inputs
+     * issues states of the same amounts to fresh keys of the account, on its notary shard. New
+     * holders of those states only resolve the reissue transaction. Started on the owner's host;
+     * the issuer signs both transactions and reissues each exit at most once.
+     *
+     * Should a reissue fail after its exit was finalised, start the flow again with the exit
+     * transaction id to reissue just that exit.
+     */
+    public abstract static class ReissueFlow<T extends AccountToken> extends MeteredFlow<String> {
+
+        private final String owner;
+        private final int minDepth;
+        private final int maxStates;
+        private final SecureHash exitTxId;
+
+        protected ReissueFlow(String owner, int minDepth, int maxStates) {
+            this(owner, minDepth, maxStates, null);
+        }
+
+        protected ReissueFlow(SecureHash exitTxId) {
+            this(null, 0, 0, exitTxId);
+        }
+
+        private ReissueFlow(String owner, int minDepth, int maxStates, SecureHash exitTxId) {
+            super(initiatorTracker());
+            this.owner = owner;
+            this.minDepth = minDepth;
+            this.maxStates = maxStates;
+            this.exitTxId = exitTxId;
+        }
+
+        protected abstract TokenDefinition<T> definition();
+
+        @Suspendable
+        @Override
+        protected String run() throws FlowException {
+            TokenDefinition<T> definition = definition();
+
+            if (exitTxId != null) {
+                SignedTransaction exitTx = getServiceHub().getValidatedTransactions().getTransaction(exitTxId);
+                if (exitTx == null) {
+                    throw new FlowException("Unknown exit transaction " + exitTxId);
+                }
+                Party issuer = exitedStates(getServiceHub(), definition, exitTx).get(0).getIssuer();
+                FlowSession issuerSession = issuerSession(issuer, false);
+                SignedTransaction reissueTx = reissue(definition, exitTx, issuerSession);
+                return definition.getName() + " exit " + exitTxId + " reissued\ntxId: " + reissueTx.getId();
+            }
+
+            getProgressTracker().setCurrentStep(RESOLVING_ACCOUNTS);
+            AccountInfo ownerAccountInfo = getServiceHub().cordaService(AccountCacheService.class).accountInfo(owner).getState().getData();
+            if (!ownerAccountInfo.getHost().equals(getOurIdentity())) {
+                throw new FlowException("Reissue must be started on the node hosting " + owner);
+            }
+            if (maxStates <= 0) {
+                throw new FlowException("maxStates must be positive");
+            }
+
+            getProgressTracker().setCurrentStep(SELECTING_STATES);
+            UUID lockId = getRunId().getUuid();
+            List<StateAndRef<T>> deep = lockDeepStates(definition, ownerAccountInfo.getIdentifier().getId(), lockId);
+            if (deep.isEmpty()) {
+                return "No " + definition.getName() + " States of " + owner + " with a backchain of " + minDepth + " or more";
+            }
+
+            Map<Party, List<StateAndRef<T>>> byIssuer = new LinkedHashMap<>();
+            for (StateAndRef<T> state : deep) {
+                byIssuer.computeIfAbsent(state.getState().getData().getIssuer(), it -> new ArrayList<>()).add(state);
+            }
+            StringBuilder report = new StringBuilder();
+            for (Map.Entry<Party, List<StateAndRef<T>>> issuer : byIssuer.entrySet()) {
+                SignedTransaction exitTx;
+                FlowSession issuerSession;
+                try {
+                    issuerSession = issuerSession(issuer.getKey(), true);
+                    exitTx = exit(definition, issuer.getValue(), issuerSession);
+                } catch (FlowException | RuntimeException e) {
+                    releaseStates(getServiceHub(), lockId, deep);
+                    throw e;
+                }
+                SignedTransaction reissueTx;
+                try {
+                    reissueTx = reissue(definition, exitTx, issuerSession);
+                } catch (FlowException | RuntimeException e) {
+                    throw new FlowException("Exit " + exitTx.getId() + " is finalised but its reissue failed, start the reissue "
+                            + "again with exitTxId " + exitTx.getId() + ": " + e.getMessage(), e);
+                }
+                report.append("\nexit: ").append(exitTx.getId()).append(" reissue: ").append(reissueTx.getId());
+            }
+            return deep.size() + " " + definition.getName() + " States of " + owner + " reissued" + report;
+        }
+
+        // Tells the issuer whether an exit comes first; null when we are the issuer
+        @Suspendable
+        private FlowSession issuerSession(Party issuer, boolean exiting) throws FlowException {
+            if (issuer.equals(getOurIdentity())) return null;
+            FlowSession session = initiateFlow(issuer);
+            session.send(exiting);
+            return session;
+        }
+
+        // Oldest first, all on the first candidate's notary, since one exit transaction takes them all
+        private List<StateAndRef<T>> lockDeepStates(TokenDefinition<T> definition, UUID accountId, UUID lockId) {
+            ReissuePolicyService policy = getServiceHub().cordaService(ReissuePolicyService.class);
+            QueryCriteria criteria = unlockedCriteria(lockId).and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(
+                    QueryCriteriaUtils.getField("ownerAccountId", definition.getSchemaClass()), accountId)));
+            Sort sort = new Sort(ImmutableList.of(new Sort.SortColumn(
+                    new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC)));
+
+            List<StateAndRef<T>> locked = new ArrayList<>();
+            Party notary = null;
+            for (int page = 1; locked.size() < maxStates; page++) {
+                Vault.Page<T> results = getServiceHub().getVaultService().queryBy(definition.getStateClass(), criteria,
+                        new PageSpecification(page, SELECTION_PAGE_SIZE), sort);
+                for (StateAndRef<T> candidate : results.getStates()) {
+                    if (locked.size() >= maxStates) break;
+                    if (notary != null && !notary.equals(candidate.getState().getNotary())) continue;
+                    if (policy.depth(getServiceHub(), candidate.getRef().getTxhash()) < minDepth) continue;
+                    try {
+                        getServiceHub().getVaultService().softLockReserve(lockId, NonEmptySet.of(candidate.getRef()));
+                    } catch (StatesNotAvailableException e) {
+                        continue;
+                    }
+                    notary = candidate.getState().getNotary();
+                    locked.add(candidate);
+                }
+                if ((long) page * SELECTION_PAGE_SIZE >= results.getTotalStatesAvailable()) break;
+            }
+            return locked;
+        }
+
+        @Suspendable
+        private SignedTransaction exit(TokenDefinition<T> definition, List<StateAndRef<T>> inputs, FlowSession issuerSession) throws FlowException {
+            return collectAndFinalise(verifyAndSign(this, exitBuilder(definition, inputs)), issuerSession);
+        }
+
+        private TransactionBuilder exitBuilder(TokenDefinition<T> definition, List<StateAndRef<T>> inputs) {
+            TransactionBuilder transactionBuilder = new TransactionBuilder(inputs.get(0).getState().getNotary());
+            Set<PublicKey> signers = new LinkedHashSet<>();
+            for (StateAndRef<T> input : inputs) {
+                transactionBuilder.addInputState(input);
+                signers.add(input.getState().getData().getOwner().getOwningKey());
+                signers.add(input.getState().getData().getIssuer().getOwningKey());
+            }
+            transactionBuilder.addCommand(definition.exitCommand(), ImmutableList.copyOf(signers));
+            return transactionBuilder;
+        }
+
+        @Suspendable
+        private SignedTransaction reissue(TokenDefinition<T> definition, SignedTransaction exitTx, FlowSession issuerSession) throws FlowException {
+            getProgressTracker().setCurrentStep(RESOLVING_ACCOUNTS);
+            Map<UUID, AnonymousParty> ownerKeys = ownerKeys(this, reissueOwners(definition, exitTx));
+            SignedTransaction selfSignedTransaction = verifyAndSign(this, reissueBuilder(definition, exitTx, ownerKeys));
+
+            if (issuerSession != null) {
+                issuerSession.send(exitTx.getId());
+                return collectAndFinalise(selfSignedTransaction, issuerSession);
+            }
+            // We are the issuer, so we keep the one reissue per exit rule ourselves
+            String key = reissueKey(exitTx.getId());
+            SecureHash done = RequestKeys.claim(this, key);
+            if (done != null) {
+                throw new FlowException("Exit " + exitTx.getId() + " was already reissued in " + done);
+            }
+            SignedTransaction reissueTx = collectAndFinalise(selfSignedTransaction, null);
+            RequestKeys.complete(this, key, reissueTx.getId());
+            return reissueTx;
+        }
+
+        // The exited states are loaded here and again in reissueBuilder rather than held while ownerKeys suspends
+        private List<AccountInfo> reissueOwners(TokenDefinition<T> definition, SignedTransaction exitTx) throws FlowException {
+            AccountCacheService accountCache = getServiceHub().cordaService(AccountCacheService.class);
+            List<AccountInfo> owners = new ArrayList<>();
+            for (T state : exitedStates(getServiceHub(), definition, exitTx)) {
+                StateAndRef<AccountInfo> account = accountCache.accountInfo(state.getOwnerAccountId());
+                if (account == null || !account.getState().getData().getHost().equals(getOurIdentity())) {
+                    throw new FlowException("Account " + state.getOwnerAccountId() + " is not hosted by this node");
+                }
+                owners.add(account.getState().getData());
+            }
+            return owners;
+        }
+
+        private TransactionBuilder reissueBuilder(TokenDefinition<T> definition, SignedTransaction exitTx,
+                                                  Map<UUID, AnonymousParty> ownerKeys) throws FlowException {
+            List<T> exited = exitedStates(getServiceHub(), definition, exitTx);
+
+            // Fresh states go to the owner's notary shard, there are no inputs to tie them to another notary
+            Party notary = getServiceHub().cordaService(NotarySelectionService.class).notaryFor(exited.get(0).getOwnerAccountId());
+            TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+            Set<PublicKey> signers = new LinkedHashSet<>();
+            for (T state : exited) {
+                AnonymousParty ownerKey = ownerKeys.get(state.getOwnerAccountId());
+                transactionBuilder.addOutputState(definition.create(state.getIssuer(), ownerKey, state.getOwnerAccountId(), state.getAmount()));
+                signers.add(state.getIssuer().getOwningKey());
+                signers.add(ownerKey.getOwningKey());
+            }
+            transactionBuilder.addCommand(definition.reissueCommand(exitTx.getId()), ImmutableList.copyOf(signers));
+            return transactionBuilder;
+        }
+
+        @Suspendable
+        private SignedTransaction collectAndFinalise(SignedTransaction selfSignedTransaction, FlowSession issuerSession) throws FlowException {
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+            List<FlowSession> sessions = issuerSession == null ? Collections.emptyList() : Collections.singletonList(issuerSession);
+            SignedTransaction fullySignedTx = collectSignatures(this, metrics, selfSignedTransaction, sessions);
+            return finalise(this, metrics, fullySignedTx, sessions);
+        }
+    }
+
+    /**
+     * The issuer's side of ReissueFlow: signs the exit of states it issued, then signs a reissue
+     * only if its outputs match what that exit retired, and only once per exit.
+     */
+    public abstract static class ReissueResponder extends MeteredFlow<Void> {
+
+        private final FlowSession otherSide;
+
+        protected ReissueResponder(FlowSession otherSide) {
+            super(responderTracker());
+            this.otherSide = otherSide;
+        }
+
+        protected abstract TokenDefinition<?> definition();
+
+        @Override
+        @Suspendable
+        protected Void run() throws FlowException {
+            TokenDefinition<?> definition = definition();
+
+            boolean exiting = otherSide.receive(Boolean.class).unwrap(it -> it);
+            if (exiting) {
+                getProgressTracker().setCurrentStep(COUNTERSIGNING);
+                subFlow(new SignTransactionFlow(otherSide) {
+                    @Override
+                    protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
+                        checkProposal(ReissueResponder.this, definition, definition.exitCommand(), stx);
+                        for (AccountToken exited : exitedStates(getServiceHub(), definition, stx)) {
+                            if (!exited.getIssuer().equals(getOurIdentity())) {
+                                throw new FlowException("Exit of a state issued by " + exited.getIssuer());
+                            }
+                        }
+                    }
+                });
+                getProgressTracker().setCurrentStep(RECORDING);
+                subFlow(new ReceiveFinalityFlow(otherSide));
+            }
+
+            SecureHash exitTxId = otherSide.receive(SecureHash.class).unwrap(it -> it);
+            SignedTransaction exitTx = getServiceHub().getValidatedTransactions().getTransaction(exitTxId);
+            if (exitTx == null) {
+                throw new FlowException("Unknown exit transaction " + exitTxId);
+            }
+            List<? extends AccountToken> exited = exitedStates(getServiceHub(), definition, exitTx);
+            // Only the host of the accounts that held the states may have them reissued
+            Party requester = otherSide.getCounterparty();
+            AccountCacheService accountCache = getServiceHub().cordaService(AccountCacheService.class);
+            for (AccountToken state : exited) {
+                StateAndRef<AccountInfo> account = accountCache.accountInfo(state.getOwnerAccountId());
+                Party host = account != null
+                        ? account.getState().getData().getHost()
+                        : getServiceHub().getIdentityService().partyFromKey(state.getOwner().getOwningKey());
+                if (!requester.equals(host)) {
+                    throw new FlowException("Account " + state.getOwnerAccountId() + " of exit " + exitTxId + " is not hosted by " + requester);
+                }
+            }
+
+            String key = reissueKey(exitTxId);
+            SecureHash done = RequestKeys.claim(this, key);
+            if (done != null) {
+                throw new FlowException("Exit " + exitTxId + " was already reissued in " + done);
+            }
+            getProgressTracker().setCurrentStep(COUNTERSIGNING);
+            subFlow(new SignTransactionFlow(otherSide) {
+                @Override
+                protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
+                    checkProposal(ReissueResponder.this, definition, definition.reissueCommand(exitTxId), stx);
+                    TokenCommand.Reissue reissue = (TokenCommand.Reissue) stx.getTx().getCommands().get(0).getValue();
+                    if (!exitTxId.equals(reissue.getExitTxId())) {
+                        throw new FlowException("Reissue names exit " + reissue.getExitTxId() + " instead of " + exitTxId);
+                    }
+                    List<AccountToken> reissued = new ArrayList<>();
+                    for (ContractState output : stx.getTx().getOutputStates()) {
+                        reissued.add((AccountToken) output);
+                    }
+                    if (!holdings(reissued).equals(holdings(exited))) {
+                        throw new FlowException("Reissued states do not match the states exit " + exitTxId + " retired");
+                    }
+                    checkReissuedOwners(stx, reissued, requester);
+                    // A reissue needs no notary, so once our signature is out it can be finalised at any time; it is the only one we sign
+                    RequestKeys.complete(ReissueResponder.this, key, stx.getId());
+                }
+            });
+            getProgressTracker().setCurrentStep(RECORDING);
+            subFlow(new ReceiveFinalityFlow(otherSide));
+            return null;
+        }
+
+        // Each new owner key must belong to the requester and the account it is reissued to. A fresh key is
+        // registered to them here: its signature on the reissue, already verified, proves the requester holds it
+        private void checkReissuedOwners(SignedTransaction stx, List<AccountToken> reissued, Party requester) throws FlowException {
+            IdentityService identityService = getServiceHub().getIdentityService();
+            Set<PublicKey> signedBy = new LinkedHashSet<>();
+            for (TransactionSignature signature : stx.getSigs()) {
+                signedBy.add(signature.getBy());
+            }
+            for (AccountToken state : reissued) {
+                PublicKey ownerKey = state.getOwner().getOwningKey();
+                if (!signedBy.contains(ownerKey)) {
+                    throw new FlowException("Owner key " + CryptoUtils.toStringShort(ownerKey) + " has not signed the reissue");
+                }
+                if (identityService.partyFromKey(ownerKey) == null) {
+                    identityService.registerKey(ownerKey, requester, state.getOwnerAccountId());
+                }
+                if (!requester.equals(identityService.partyFromKey(ownerKey))
+                        || !state.getOwnerAccountId().equals(identityService.externalIdForPublicKey(ownerKey))) {
+                    throw new FlowException("Owner key " + CryptoUtils.toStringShort(ownerKey) + " is not a key of account "
+                            + state.getOwnerAccountId() + " on " + requester);
+                }
+            }
+        }
+
+        // Count of states per issuer, owner account and amount; owner keys are checked by checkReissuedOwners
+        private Map<String, Integer> holdings(List<? extends AccountToken> states) {
+            Map<String, Integer> holdings = new HashMap<>();
+            for (AccountToken state : states) {
+                holdings.merge(state.getIssuer() + "|" + state.getOwnerAccountId() + "|" + state.getAmount(), 1, Integer::sum);
+            }
+            return holdings;
+        }
+    }
+
+    private static String reissueKey(SecureHash exitTxId) {
+        return "reissue:" + exitTxId;
+    }
+
+    /**
+     * The states an exit transaction of the token retired, loaded from transaction storage.
+     */
+    static <T extends AccountToken> List<T> exitedStates(ServiceHub serviceHub, TokenDefinition<T> definition,
+                                                         SignedTransaction exitTx) throws FlowException {
+        List<Command<?>> commands = exitTx.getTx().getCommands();
+        if (commands.size() != 1 || !definition.exitCommand().getClass().isInstance(commands.get(0).getValue())) {
+            throw new FlowException("Transaction " + exitTx.getId() + " is not a " + definition.getName() + " exit");
+        }
+        List<T> exited = new ArrayList<>();
+        for (StateAndRef<ContractState> input : serviceHub.loadStates(new LinkedHashSet<>(exitTx.getInputs()))) {
+            ContractState state = input.getState().getData();
+            if (!definition.getStateClass().isInstance(state)) {
+                throw new FlowException("Exit " + exitTx.getId() + " retires a " + state.getClass().getSimpleName());
+            }
+            exited.add(definition.getStateClass().cast(state));
+        }
+        return exited;
+    }
+
+    public abstract static class IssuanceResponder extends MeteredFlow<Void> {
+
+        private final FlowSession otherSide;
+
+        protected IssuanceResponder(FlowSession otherSide) {
+            super(responderTracker());
+            this.otherSide = otherSide;
+        }
+
+        protected abstract TokenDefinition<?> definition();
+
+        @Override
+        @Suspendable
+        protected Void run() throws FlowException {
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+            getProgressTracker().setCurrentStep(COUNTERSIGNING);
+            long start = System.nanoTime();
+            subFlow(new SignTransactionFlow(otherSide) {
+                @Override
+                protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
+                    checkProposal(IssuanceResponder.this, definition(), definition().issueCommand(), stx);
+                }
+            });
+            metrics.record(getClass(), "signTransaction", start);
+
+            getProgressTracker().setCurrentStep(RECORDING);
+            start = System.nanoTime();
+            subFlow(new ReceiveFinalityFlow(otherSide));
+            metrics.record(getClass(), "receiveFinality", start);
+
+            return null;
+        }
+    }
+
+    public abstract static class SwapResponder extends MeteredFlow<Void> {
+
+        private final FlowSession otherSide;
+
+        protected SwapResponder(FlowSession otherSide) {
+            super(responderTracker());
+            this.otherSide = otherSide;
+        }
+
+        protected abstract TokenDefinition<?> definition();
+
+        @Override
+        @Suspendable
+        protected Void run() throws FlowException {
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+            // The initiator tells us whether our signature is required or we only record the swap
+            boolean signatureRequired = otherSide.receive(Boolean.class).unwrap(it -> it);
+            if (signatureRequired) {
+                getProgressTracker().setCurrentStep(COUNTERSIGNING);
+                long start = System.nanoTime();
+                subFlow(new SignTransactionFlow(otherSide) {
+                    @Override
+                    protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
+                        checkProposal(SwapResponder.this, definition(), definition().swapCommand(), stx);
+                    }
+                });
+                metrics.record(getClass(), "signTransaction", start);
+            }
+
+            getProgressTracker().setCurrentStep(RECORDING);
+            long start = System.nanoTime();
+            SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(otherSide));
+            metrics.record(getClass(), "receiveFinality", start);
+
+            getServiceHub().cordaService(ReissuePolicyService.class).afterRecording(getServiceHub(), definition(), recorded);
+            return null;
+        }
+    }
+
+    /**
+     * Checks a responder runs before signing a proposal of a single token type under one command.
+     */
+    static void checkProposal(FlowLogic<?> responder, TokenDefinition<?> definition, CommandData expectedCommand,
+                              SignedTransaction stx) throws FlowException {
+        checkProposal(responder, Collections.singletonList(definition), Collections.singletonList(expectedCommand), stx,
+                Collections.emptySet());
+    }
+
+    /**
+     * Checks a responder runs before signing: exactly the expected commands, one of them naming
+     * one of our keys, outputs of the given token types within the amount limit, known issuers,
+     * and outputs owned by our keys held by the accounts those keys were registered to, hosted
+     * here. Inputs are loaded from the resolved backchain: every input owned by one of our keys
+     * that is not among the states we agreed to hand over must come back to the same account,
+     * issuer and token type in full. Every key of ours the commands name must own one of those
+     * inputs or outputs, or be our legal identity issuing one of the states. Each check is timed
+     * as ResponderClass.check.name.
+     */
+    static void checkProposal(FlowLogic<?> responder, List<TokenDefinition<?>> definitions, List<CommandData> expectedCommands,
+                              SignedTransaction stx, Set<StateRef> handedOver) throws FlowException {
+        ServiceHub serviceHub = responder.getServiceHub();
+        FlowMetricsService metrics = serviceHub.cordaService(FlowMetricsService.class);
+        Party us = responder.getOurIdentity();
+        WireTransaction wtx = stx.getTx();
+
+        long start = System.nanoTime();
+        List<Command<?>> commands = wtx.getCommands();
+        List<CommandData> unmatched = new ArrayList<>(expectedCommands);
+        Set<PublicKey> signerKeys = new LinkedHashSet<>();
+        for (Command<?> command : commands) {
+            CommandData match = null;
+            for (CommandData expectedCommand : unmatched) {
+                if (expectedCommand.getClass().isInstance(command.getValue())) {
+                    match = expectedCommand;
+                    break;
+                }
+            }
+            if (match == null) {
+                throw new FlowException("Unexpected command " + command.getValue().getClass().getSimpleName());
+            }
+            unmatched.remove(match);
+            signerKeys.addAll(command.getSigners());
+        }
+        if (!unmatched.isEmpty()) {
+            throw new FlowException("Missing " + unmatched.get(0).getClass().getSimpleName() + " command");
+        }
+        Set<PublicKey> ourSignerKeys = ImmutableSet.copyOf(serviceHub.getKeyManagementService().filterMyKeys(signerKeys));
+        if (ourSignerKeys.isEmpty()) {
+            throw new FlowException("None of our keys is a signer of the commands");
+        }
+        metrics.record(responder.getClass(), "check.command", start);
+
+        start = System.nanoTime();
+        long maxAmount = maxAmount(serviceHub);
+        List<AccountToken> outputs = new ArrayList<>();
+        for (ContractState output : wtx.getOutputStates()) {
+            AccountToken token = asToken(definitions, output);
+            if (token == null) {
+                throw new FlowException("Unexpected output " + output.getClass().getSimpleName());
+            }
+            if (token.getAmount() <= 0 || token.getAmount() > maxAmount) {
+                throw new FlowException("Amount " + token.getAmount() + " is outside 1.." + maxAmount);
+            }
+            outputs.add(token);
+        }
+        metrics.record(responder.getClass(), "check.amounts", start);
+
+        start = System.nanoTime();
+        AccountCacheService accountCache = serviceHub.cordaService(AccountCacheService.class);
+        Set<PublicKey> ownerKeys = new LinkedHashSet<>();
+        for (AccountToken output : outputs) {
+            ownerKeys.add(output.getOwner().getOwningKey());
+        }
+        Set<PublicKey> ourOwnerKeys = ImmutableSet.copyOf(serviceHub.getKeyManagementService().filterMyKeys(ownerKeys));
+        // What the outputs credit to each of our accounts, per token type and issuer
+        Map<String, Long> credited = new HashMap<>();
+        for (AccountToken output : outputs) {
+            PublicKey ownerKey = output.getOwner().getOwningKey();
+            if (!ourOwnerKeys.contains(ownerKey)) continue;
+            // A key of one account must not be used to credit another
+            UUID keyAccount = serviceHub.getIdentityService().externalIdForPublicKey(ownerKey);
+            if (!output.getOwnerAccountId().equals(keyAccount)) {
+                throw new FlowException("Owner key of account " + output.getOwnerAccountId() + " is registered to account " + keyAccount);
+            }
+            StateAndRef<AccountInfo> account = accountCache.accountInfo(output.getOwnerAccountId());
+            if (account == null || !account.getState().getData().getHost().equals(us)) {
+                throw new FlowException("Account " + output.getOwnerAccountId() + " is not hosted by this node");
+            }
+            credited.merge(holding(output), output.getAmount(), Long::sum);
+        }
+        metrics.record(responder.getClass(), "check.owner", start);
+
+        start = System.nanoTime();
+        Map<StateRef, AccountToken> inputs = new LinkedHashMap<>();
+        for (StateAndRef<ContractState> input : serviceHub.loadStates(new LinkedHashSet<>(wtx.getInputs()))) {
+            AccountToken token = asToken(definitions, input.getState().getData());
+            if (token == null) {
+                throw new FlowException("Unexpected input " + input.getState().getData().getClass().getSimpleName());
+            }
+            inputs.put(input.getRef(), token);
+        }
+        Set<PublicKey> inputOwnerKeys = new LinkedHashSet<>();
+        for (AccountToken input : inputs.values()) {
+            inputOwnerKeys.add(input.getOwner().getOwningKey());
+        }
+        Set<PublicKey> ourInputKeys = ImmutableSet.copyOf(serviceHub.getKeyManagementService().filterMyKeys(inputOwnerKeys));
+        // Our states may only be spent back to the account holding them, unless we agreed to hand them over
+        Map<String, Long> debited = new HashMap<>();
+        for (Map.Entry<StateRef, AccountToken> input : inputs.entrySet()) {
+            if (!ourInputKeys.contains(input.getValue().getOwner().getOwningKey()) || handedOver.contains(input.getKey())) continue;
+            debited.merge(holding(input.getValue()), input.getValue().getAmount(), Long::sum);
+        }
+        for (Map.Entry<String, Long> debit : debited.entrySet()) {
+            if (credited.getOrDefault(debit.getKey(), 0L) < debit.getValue()) {
+                throw new FlowException("Transaction spends " + debit.getValue() + " of " + debit.getKey() + " without returning it");
+            }
+        }
+        metrics.record(responder.getClass(), "check.inputs", start);
+
+        start = System.nanoTime();
+        Set<Party> issuers = new LinkedHashSet<>();
+        for (AccountToken output : outputs) {
+            issuers.add(output.getIssuer());
+        }
+        for (Party issuer : issuers) {
+            if (serviceHub.getNetworkMapCache().getNodeByLegalIdentity(issuer) == null) {
+                throw new FlowException("Unknown issuer " + issuer);
+            }
+        }
+        metrics.record(responder.getClass(), "check.issuer", start);
+
+        // Our signature must only ever stand for states checked above
+        start = System.nanoTime();
+        boolean weIssue = false;
+        for (AccountToken token : Iterables.concat(inputs.values(), outputs)) {
+            weIssue |= token.getIssuer().equals(us);
+        }
+        for (PublicKey signerKey : ourSignerKeys) {
+            if (ourOwnerKeys.contains(signerKey) || ourInputKeys.contains(signerKey)) continue;
+            if (weIssue && signerKey.equals(us.getOwningKey())) continue;
+            throw new FlowException("Our key " + CryptoUtils.toStringShort(signerKey) + " signs for no state of ours");
+        }
+        metrics.record(responder.getClass(), "check.signers", start);
+    }
+
+    // The state as a token of one of the definitions, null when it is none of them
+    private static AccountToken asToken(List<TokenDefinition<?>> definitions, ContractState state) {
+        for (TokenDefinition<?> definition : definitions) {
+            if (definition.getStateClass().isInstance(state)) {
+                return definition.getStateClass().cast(state);
+            }
+        }
+        return null;
+    }
+
+    // What a state holds for its account: token type, issuer and account
+    private static String holding(AccountToken token) {
+        return token.getClass().getSimpleName() + "|" + token.getIssuer() + "|" + token.getOwnerAccountId();
+    }
+
+    // Largest amount a responder accepts in one output, from maxTokenAmount in the CorDapp config
+    static long maxAmount(ServiceHub serviceHub) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        return config.exists(MAX_AMOUNT_KEY) ? config.getLong(MAX_AMOUNT_KEY) : DEFAULT_MAX_AMOUNT;
+    }
+
+    /**
+     * Issues one state per (owner, amount) pair. Under the hash notary strategy each state goes to
+     * its owner account's notary shard, with one transaction per shard; otherwise all states share
+     * one transaction. Returns the transactions in shard order.
+     */
+    @Suspendable
+    static <T extends AccountToken> List<SignedTransaction> issue(FlowLogic<?> flow, TokenDefinition<T> definition, String issuer,
+                                                                 List<String> owners, List<Long> amounts) throws FlowException {
+        AccountCacheService accountCache = flow.getServiceHub().cordaService(AccountCacheService.class);
+        NotarySelectionService notarySelection = flow.getServiceHub().cordaService(NotarySelectionService.class);
+        FlowMetricsService metrics = flow.getServiceHub().cordaService(FlowMetricsService.class);
+
+        step(flow, RESOLVING_ACCOUNTS);
+        long start = System.nanoTime();
+        Party issuerAccount = accountCache.accountInfo(issuer).getState().getData().getHost();
+        List<AccountInfo> ownerAccountInfos = new ArrayList<>();
+        for (String owner : owners) {
+            ownerAccountInfos.add(accountCache.accountInfo(owner).getState().getData());
+        }
+
+        //grab the notary of each output, the shard of its owner's account under the hash strategy
+        Party sharedNotary = notarySelection.getStrategy() == NotarySelectionService.Strategy.HASH ? null
+                : notarySelection.notaryFor(ownerAccountInfos.get(0).getIdentifier().getId());
+        Map<Party, List<Integer>> shards = new LinkedHashMap<>();
+        for (int i = 0; i < ownerAccountInfos.size(); i++) {
+            Party notary = sharedNotary != null ? sharedNotary : notarySelection.notaryFor(ownerAccountInfos.get(i).getIdentifier().getId());
+            shards.computeIfAbsent(notary, it -> new ArrayList<>()).add(i);
+        }
+        metrics.record(flow.getClass(), "resolveAccounts", start);
+
+        start = System.nanoTime();
+        Map<UUID, AnonymousParty> ownerKeys = ownerKeys(flow, ownerAccountInfos);
+        metrics.record(flow.getClass(), "resolveKeys", start);
+
+        List<SignedTransaction> transactions = new ArrayList<>();
+        for (Map.Entry<Party, List<Integer>> shard : shards.entrySet()) {
+            List<AccountInfo> shardOwners = new ArrayList<>();
+            List<Long> shardAmounts = new ArrayList<>();
+            for (int i : shard.getValue()) {
+                shardOwners.add(ownerAccountInfos.get(i));
+                shardAmounts.add(amounts.get(i));
+            }
+            transactions.add(issueOnNotary(flow, definition, issuerAccount, shard.getKey(), shardOwners, ownerKeys, shardAmounts));
+        }
+        return transactions;
+    }
+
+    /**
+     * A new anonymous key for each account, one per account even if it is listed twice. Keys of
+     * accounts hosted here come from AccountKeyPoolService, the others from their host with one
+     * RequestAccountKeysFlow per host.
+     */
+    @Suspendable
+    static Map<UUID, AnonymousParty> ownerKeys(FlowLogic<?> flow, List<AccountInfo> accounts) throws FlowException {
+        AccountKeyPoolService keyPool = flow.getServiceHub().cordaService(AccountKeyPoolService.class);
+        Map<UUID, AnonymousParty> keys = new LinkedHashMap<>();
+        Map<Party, Set<UUID>> remote = new LinkedHashMap<>();
+        for (AccountInfo account : accounts) {
+            UUID id = account.getIdentifier().getId();
+            if (account.getHost().equals(flow.getOurIdentity())) {
+                if (!keys.containsKey(id)) {
+                    keys.put(id, new AnonymousParty(keyPool.take(id)));
+                }
+            } else {
+                remote.computeIfAbsent(account.getHost(), it -> new LinkedHashSet<>()).add(id);
+            }
+        }
+        for (Map.Entry<Party, Set<UUID>> host : remote.entrySet()) {
+            List<UUID> ids = new ArrayList<>(host.getValue());
+            List<AnonymousParty> hostKeys = flow.subFlow(new RequestAccountKeysFlow(host.getKey(), ids));
+            for (int i = 0; i < ids.size(); i++) {
+                keys.put(ids.get(i), hostKeys.get(i));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Issues one state per (owner, amount) pair in a single transaction, with one session per
+     * counterparty host for both signatures and finality.
+     */
+    @Suspendable
+    private static <T extends AccountToken> SignedTransaction issueOnNotary(FlowLogic<?> flow, TokenDefinition<T> definition,
+                                                                           Party issuerAccount, Party notary, List<AccountInfo> owners,
+                                                                           Map<UUID, AnonymousParty> ownerKeys, List<Long> amounts) throws FlowException {
+        FlowMetricsService metrics = flow.getServiceHub().cordaService(FlowMetricsService.class);
+
+        //sign the transaction with the issuer key and the keys of the owner accounts hosted on the Initiating node
+        SignedTransaction selfSignedTransaction = verifyAndSign(flow, issueBuilder(definition, issuerAccount, notary, owners, ownerKeys, amounts));
+
+        Set<Party> ownerHosts = new LinkedHashSet<>();
+        for (AccountInfo ownerAccountInfo : owners) {
+            ownerHosts.add(ownerAccountInfo.getHost());
+        }
+        List<FlowSession> ownerSessions = new ArrayList<>();
+        for (Party host : ownerHosts) {
+            if (!host.equals(flow.getOurIdentity())) {
+                ownerSessions.add(flow.initiateFlow(host));
+            }
+        }
+
+        //call CollectSignaturesFlow to get the signature from the owners, our keys have already signed the transaction
+        final SignedTransaction fullySignedTx = collectSignatures(flow, metrics, selfSignedTransaction, ownerSessions);
+
+        //call FinalityFlow for finality
+        return finalise(flow, metrics, fullySignedTx, ownerSessions);
+    }
+
+    private static <T extends AccountToken> TransactionBuilder issueBuilder(TokenDefinition<T> definition, Party issuerAccount, Party notary,
+                                                                           List<AccountInfo> owners, Map<UUID, AnonymousParty> ownerKeys,
+                                                                           List<Long> amounts) {
+        TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+        Set<PublicKey> signers = new LinkedHashSet<>();
+        signers.add(issuerAccount.getOwningKey());
+        for (int i = 0; i < owners.size(); i++) {
+            AccountInfo ownerAccountInfo = owners.get(i);
+            AnonymousParty ownerKey = ownerKeys.get(ownerAccountInfo.getIdentifier().getId());
+            signers.add(ownerKey.getOwningKey());
+            transactionBuilder.addOutputState(definition.create(issuerAccount, ownerKey, ownerAccountInfo.getIdentifier().getId(), amounts.get(i)));
+        }
+        transactionBuilder.addCommand(definition.issueCommand(), ImmutableList.copyOf(signers));
+        return transactionBuilder;
+    }
+
+    /**
+     * Consumes the inputs and records the outputs under the Swap command. Every input and output
+     * owner signs; issuers on other hosts only record the transaction.
+     */
+    @Suspendable
+    static <T extends AccountToken> SignedTransaction move(FlowLogic<?> flow, TokenDefinition<T> definition,
+                                                          List<StateAndRef<T>> inputs, List<T> outputs) throws FlowException {
+        FlowMetricsService metrics = flow.getServiceHub().cordaService(FlowMetricsService.class);
+
+        Set<PublicKey> signerKeys = new LinkedHashSet<>();
+        Set<Party> hosts = new LinkedHashSet<>();
+        for (StateAndRef<T> input : inputs) {
+            signerKeys.add(input.getState().getData().getOwner().getOwningKey());
+            hosts.add(input.getState().getData().getIssuer());
+        }
+        for (T output : outputs) {
+            signerKeys.add(output.getOwner().getOwningKey());
+            hosts.add(output.getIssuer());
+        }
+
+        // Owner keys were registered to their host when they were handed out
+        Set<Party> signers = new LinkedHashSet<>();
+        for (PublicKey signerKey : signerKeys) {
+            Party signer = flow.getServiceHub().getIdentityService().partyFromKey(signerKey);
+            if (signer == null) {
+                throw new FlowException("Unknown owner key " + CryptoUtils.toStringShort(signerKey));
+            }
+            signers.add(signer);
+        }
+        hosts.addAll(signers);
+
+        // Verify and sign with the owner keys this node holds
+        SignedTransaction selfSignedTransaction = verifyAndSign(flow, moveBuilder(definition, inputs, outputs, signerKeys));
+
+        // Open a session with every other host that has to sign or record the swap
+        List<FlowSession> signerSessions = new ArrayList<>();
+        List<FlowSession> sessions = new ArrayList<>();
+        for (Party host : hosts) {
+            if (host.equals(flow.getOurIdentity())) continue;
+            FlowSession session = flow.initiateFlow(host);
+            boolean signatureRequired = signers.contains(host);
+            session.send(signatureRequired);
+            if (signatureRequired) signerSessions.add(session);
+            sessions.add(session);
+        }
+
+        //call CollectSignaturesFlow to get the signatures of the other owners, the owner has already signed the transaction
+        final SignedTransaction fullySignedTx = collectSignatures(flow, metrics, selfSignedTransaction, signerSessions);
+
+        //call FinalityFlow for finality, then see whether the outputs' backchain calls for a reissue
+        SignedTransaction notarisedTx = finalise(flow, metrics, fullySignedTx, sessions);
+        flow.getServiceHub().cordaService(ReissuePolicyService.class).afterRecording(flow.getServiceHub(), definition, notarisedTx);
+        return notarisedTx;
+    }
+
+    private static <T extends AccountToken> TransactionBuilder moveBuilder(TokenDefinition<T> definition, List<StateAndRef<T>> inputs,
+                                                                          List<T> outputs, Set<PublicKey> signerKeys) {
+        // Inputs are selected on a single notary, so the transaction has to use the same one
+        TransactionBuilder transactionBuilder = new TransactionBuilder(inputs.get(0).getState().getNotary());
+        for (StateAndRef<T> input : inputs) {
+            transactionBuilder.addInputState(input);
+        }
+        for (T output : outputs) {
+            transactionBuilder.addOutputState(output);
+        }
+        transactionBuilder.addCommand(definition.swapCommand(), ImmutableList.copyOf(signerKeys));
+        return transactionBuilder;
+    }
+
+    /**
+     * Verifies the builder and signs it with the keys of ours among its command signers. Not
+     * suspendable and handed the builder straight from the method that built it, so only the
+     * signed transaction is on the caller's stack, and in its checkpoints, from here on.
+     */
+    static SignedTransaction verifyAndSign(FlowLogic<?> flow, TransactionBuilder transactionBuilder) {
+        FlowMetricsService metrics = flow.getServiceHub().cordaService(FlowMetricsService.class);
+
+        step(flow, VERIFYING);
+        long start = System.nanoTime();
+        transactionBuilder.verify(flow.getServiceHub());
+        metrics.record(flow.getClass(), "verify", start);
+
+        step(flow, SIGNING);
+        start = System.nanoTime();
+        Set<PublicKey> signers = new LinkedHashSet<>();
+        for (Command<?> command : transactionBuilder.commands()) {
+            signers.addAll(command.getSigners());
+        }
+        List<PublicKey> ourKeys = ImmutableList.copyOf(flow.getServiceHub().getKeyManagementService().filterMyKeys(signers));
+        SignedTransaction selfSignedTransaction = flow.getServiceHub().signInitialTransaction(transactionBuilder, ourKeys);
+        metrics.record(flow.getClass(), "sign", start);
+        return selfSignedTransaction;
+    }
+
+    // Our keys are the ones that signed the transaction so far
+    @Suspendable
+    private static SignedTransaction collectSignatures(FlowLogic<?> flow, FlowMetricsService metrics, SignedTransaction selfSignedTransaction,
+                                                       List<FlowSession> sessions) throws FlowException {
+        List<PublicKey> ourKeys = new ArrayList<>();
+        for (TransactionSignature signature : selfSignedTransaction.getSigs()) {
+            ourKeys.add(signature.getBy());
+        }
+        step(flow, COLLECTING_SIGNATURES);
+        long start = System.nanoTime();
+        SignedTransaction fullySignedTx = flow.subFlow(new CollectSignaturesFlow(selfSignedTransaction, sessions,
+                ourKeys, COLLECTING_SIGNATURES.childProgressTracker()));
+        metrics.record(flow.getClass(), "collectSignatures", start);
+        return fullySignedTx;
+    }
+
+    @Suspendable
+    private static SignedTransaction finalise(FlowLogic<?> flow, FlowMetricsService metrics, SignedTransaction fullySignedTx,
+                                              List<FlowSession> sessions) throws FlowException {
+        step(flow, FINALISING);
+        long start = System.nanoTime();
+        RequestKeys.finalising(flow, fullySignedTx.getId());
+        SignedTransaction notarisedTx = flow.subFlow(new FinalityFlow(fullySignedTx, sessions, FINALISING.childProgressTracker()));
+        metrics.record(flow.getClass(), "finality", start);
+        return notarisedTx;
+    }
+
+    // issue() and move() may be called from flows that do not declare a tracker
+    private static void step(FlowLogic<?> flow, ProgressTracker.Step step) {
+        ProgressTracker progressTracker = flow.getProgressTracker();
+        if (progressTracker != null) {
+            progressTracker.setCurrentStep(step);
+        }
+    }
+
+    private static <T extends AccountToken> Map<Party, Long> sumByIssuer(List<StateAndRef<T>> states) {
+        Map<Party, Long> totals = new LinkedHashMap<>();
+        for (StateAndRef<T> state : states) {
+            totals.merge(state.getState().getData().getIssuer(), state.getState().getData().getAmount(), Long::sum);
+        }
+        return totals;
+    }
+
+    /**
+     * Outputs paying amount out of the inputs to the payee: per issuer, the payee gets what is still
+     * needed and the rest goes back to the payer as change. The inputs must cover the amount.
+     */
+    static <T extends AccountToken> List<T> payWithChange(TokenDefinition<T> definition, List<StateAndRef<T>> inputs, long amount,
+                                                          AnonymousParty payeeKey, UUID payeeAccountId,
+                                                          AnonymousParty payerKey, UUID payerAccountId) {
+        List<T> outputs = new ArrayList<>();
+        long remaining = amount;
+        for (Map.Entry<Party, Long> total : sumByIssuer(inputs).entrySet()) {
+            long moved = Math.min(remaining, total.getValue());
+            remaining -= moved;
+            if (moved > 0) {
+                outputs.add(definition.create(total.getKey(), payeeKey, payeeAccountId, moved));
+            }
+            if (total.getValue() > moved) {
+                outputs.add(definition.create(total.getKey(), payerKey, payerAccountId, total.getValue() - moved));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Soft locks the account's unconsumed states under lockId, in the given amount order, until their
+     * total reaches target or maxStates are locked. States locked by other flows are skipped, as is a
+     * candidate another flow locks between the query and the reservation. All returned states share
+     * a notary. The caller checks whether the total is enough.
+     */
+    public static <T extends AccountToken> List<StateAndRef<T>> lockStates(ServiceHub serviceHub, TokenDefinition<T> definition,
+                                                                          UUID ownerAccountId, UUID lockId, Sort.Direction order,
+                                                                          long target, int maxStates) {
+        return lockStates(serviceHub, definition, ownerAccountId, lockId, order, target, maxStates, null);
+    }
+
+    /**
+     * Like lockStates above, but only locks states on the given notary when it is not null, e.g. to
+     * match states another leg of the transaction has already locked.
+     */
+    public static <T extends AccountToken> List<StateAndRef<T>> lockStates(ServiceHub serviceHub, TokenDefinition<T> definition,
+                                                                          UUID ownerAccountId, UUID lockId, Sort.Direction order,
+                                                                          long target, int maxStates, Party notary) {
+        QueryCriteria criteria = unlockedCriteria(lockId).and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(
+                QueryCriteriaUtils.getField("ownerAccountId", definition.getSchemaClass()), ownerAccountId)));
+        Sort sort = new Sort(ImmutableList.of(new Sort.SortColumn(new SortAttribute.Custom(definition.getSchemaClass(), "amount"), order)));
+
+        List<StateAndRef<T>> locked = new ArrayList<>();
+        long total = 0;
+        for (int page = 1; ; page++) {
+            Vault.Page<T> results = serviceHub.getVaultService().queryBy(definition.getStateClass(), criteria,
+                    new PageSpecification(page, SELECTION_PAGE_SIZE), sort);
+            for (StateAndRef<T> candidate : results.getStates()) {
+                if (total >= target || locked.size() >= maxStates) {
+                    return locked;
+                }
+                if (notary != null && !notary.equals(candidate.getState().getNotary())) continue;
+                try {
+                    serviceHub.getVaultService().softLockReserve(lockId, NonEmptySet.of(candidate.getRef()));
+                } catch (StatesNotAvailableException e) {
+                    // Locked by another flow since the query ran
+                    continue;
+                }
+                notary = candidate.getState().getNotary();
+                locked.add(candidate);
+                total += candidate.getState().getData().getAmount();
+            }
+            if (total >= target || locked.size() >= maxStates || (long) page * SELECTION_PAGE_SIZE >= results.getTotalStatesAvailable()) {
+                return locked;
+            }
+        }
+    }
+
+    public static void releaseStates(ServiceHub serviceHub, UUID lockId, List<? extends StateAndRef<?>> states) {
+        for (StateAndRef<?> state : states) {
+            releaseState(serviceHub, lockId, state);
+        }
+    }
+
+    /**
+     * Returns an unconsumed state of the account with exactly this amount, soft locked under lockId,
+     * or null. States locked by other flows are skipped, and a candidate that another flow locks
+     * between the query and the reservation is passed over for the next one.
+     */
+    public static <T extends AccountToken> StateAndRef<T> selectState(ServiceHub serviceHub, TokenDefinition<T> definition,
+                                                                     UUID ownerAccountId, long amount, UUID lockId) {
+        QueryCriteria accountCriteria = new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(
+                QueryCriteriaUtils.getField("ownerAccountId", definition.getSchemaClass()), ownerAccountId));
+        QueryCriteria amountCriteria = new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(
+                QueryCriteriaUtils.getField("amount", definition.getSchemaClass()), amount));
+        Vault.Page<T> results = serviceHub.getVaultService().queryBy(definition.getStateClass(),
+                unlockedCriteria(lockId).and(accountCriteria).and(amountCriteria), new PageSpecification(1, SELECTION_PAGE_SIZE));
+
+        for (StateAndRef<T> candidate : results.getStates()) {
+            try {
+                serviceHub.getVaultService().softLockReserve(lockId, NonEmptySet.of(candidate.getRef()));
+                return candidate;
+            } catch (StatesNotAvailableException e) {
+                // Locked by another flow since the query ran
+            }
+        }
+        return null;
+    }
+
+    // States nobody has locked, or that this flow has locked already
+    private static QueryCriteria unlockedCriteria(UUID lockId) {
+        return new QueryCriteria.VaultQueryCriteria().withSoftLockingCondition(
+                new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_AND_SPECIFIED, ImmutableList.of(lockId)));
+    }
+
+    public static void releaseState(ServiceHub serviceHub, UUID lockId, StateAndRef<?> stateAndRef) {
+        serviceHub.getVaultService().softLockRelease(lockId, NonEmptySet.of(stateAndRef.getRef()));
+    }
+}
@@ -0,0 +1,73 @@
+package bootcamp.token1;
+
+import bootcamp.TokenDefinition;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.schemas.PersistentState;
+
+import java.util.UUID;
+
+public class Token1Definition implements TokenDefinition<TokenState> {
+
+    public static final Token1Definition INSTANCE = new Token1Definition();
+
+    private Token1Definition() { }
+
+    @Override
+    public String getName() {
+        return "Token1";
+    }
+
+    @Override
+    public Class<TokenState> getStateClass() {
+        return TokenState.class;
+    }
+
+    @Override
+    public Class<? extends PersistentState> getSchemaClass() {
+        return TokenSchemaV1.PersistentToken.class;
+    }
+
+    @Override
+    public TokenState create(Party issuer, AbstractParty owner, UUID ownerAccountId, long amount) {
+        return new TokenState(issuer, owner, ownerAccountId, amount);
+    }
+
+    @Override
+    public CommandData issueCommand() {
+        return new TokenContract.Commands.Issue();
+    }
+
+    @Override
+    public CommandData swapCommand() {
+        return new TokenContract.Commands.Swap();
+    }
+
+    @Override
+    public CommandData exchangeCommand() {
+        return new TokenContract.Commands.Exchange();
+    }
+
+    @Override
+    public CommandData settleCommand() {
+        return new TokenContract.Commands.Settle();
+    }
+
+    @Override
+    public CommandData exitCommand() {
+        return new TokenContract.Commands.Exit();
+    }
+
+    @Override
+    public CommandData reissueCommand(SecureHash exitTxId) {
+        return new TokenContract.Commands.Reissue(exitTxId);
+    }
+
+    @Override
+    public FlowLogic<String> reissueFlow(String owner, int minDepth, int maxStates) {
+        return new TokenFlow.TokenReissue(owner, minDepth, maxStates);
+    }
+}
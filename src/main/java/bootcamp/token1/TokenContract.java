@@ -1,55 +1,40 @@
 package bootcamp.token1;
 
-import net.corda.core.contracts.*;
-import net.corda.core.transactions.LedgerTransaction;
-import java.util.List;
-
-import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
-import static net.corda.core.contracts.ContractsDSL.requireThat;
-
-public class TokenContract implements Contract {
-
-    @Override
-    public void verify(LedgerTransaction tx) throws IllegalArgumentException {
-        CommandWithParties<TokenContract.Commands> command = requireSingleCommand(tx.getCommands(), TokenContract.Commands.class);
-
-        List<ContractState> inputs = tx.getInputStates();
-        List<ContractState> outputs = tx.getOutputStates();
-
-        if (command.getValue() instanceof TokenContract.Commands.Issue) {
-            requireThat(req -> {
-                req.using("Transaction must have no input states.", inputs.isEmpty());
-                req.using("Transaction must have exactly one output.", outputs.size() == 1);
-                req.using("Output must be a TokenState.", outputs.get(0) instanceof TokenState);
-                TokenState output = (TokenState) outputs.get(0);
-                req.using("Issuer Account must be required singer.", command.getSigners().contains(output.getIssuer().getOwningKey()));
-                req.using("Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
-                req.using("Amount must be positive.", output.getAmount() > 0);
-                return null;
-            });
-        }
+import bootcamp.AccountTokenContract;
+import bootcamp.TokenCommand;
+import net.corda.core.crypto.SecureHash;
 
-        else if (command.getValue() instanceof TokenContract.Commands.Swap) {
-            requireThat(req -> {
-                req.using("Transaction must have no input states.", inputs.isEmpty());
-                req.using("Transaction must have exactly one output.", outputs.size() == 1);
-                req.using("Output must be a TokenState.", outputs.get(0) instanceof TokenState);
-                TokenState output = (TokenState) outputs.get(0);
-                req.using("New Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
-                req.using("Amount must be positive.", output.getAmount() > 0);
-                return null;
-            });
-        } else {
-            throw new IllegalArgumentException("Unrecognized command");
-        }
+public class TokenContract extends AccountTokenContract<TokenState> {
+
+    public TokenContract() {
+        super(TokenState.class, TokenContract.Commands.class);
     }
 
-    public interface Commands extends CommandData {
-        class Issue implements Commands { }
+    public interface Commands extends TokenCommand {
+        class Issue implements Commands, TokenCommand.Issue { }
+
+        class Swap implements Commands, TokenCommand.Swap {}
+
+        class Exchange implements Commands, TokenCommand.Exchange {}
 
-        class Swap implements Commands {}
+        class Settle implements Commands, TokenCommand.Settle {}
+
+        class Exit implements Commands, TokenCommand.Exit {}
+
+        class Reissue implements Commands, TokenCommand.Reissue {
+            private final SecureHash exitTxId;
+
+            public Reissue(SecureHash exitTxId) {
+                this.exitTxId = exitTxId;
+            }
+
+            @Override
+            public SecureHash getExitTxId() {
+                return exitTxId;
+            }
+        }
 
         //class Transfer implements Commands{}
 
     }
-}
\ No newline at end of file
+}
@@ -1,213 +1,172 @@
 package bootcamp.token1;
 
-import co.paralleluniverse.fibers.Suspendable;
-import com.google.common.collect.ImmutableList;
-import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
-import com.r3.corda.lib.accounts.workflows.UtilitiesKt;
-import net.corda.core.contracts.StateAndRef;
-import net.corda.core.identity.Party;
+import bootcamp.TokenDefinition;
+import bootcamp.TokenEngine;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
-import net.corda.core.node.services.Vault;
-import net.corda.core.transactions.SignedTransaction;
-import net.corda.core.transactions.TransactionBuilder;
-import org.jetbrains.annotations.NotNull;
 
-import java.util.Collections;
+import java.util.List;
 
 public class TokenFlow {
 
     @InitiatingFlow
     @StartableByRPC
-    public static class TokenIssuanceFlow extends FlowLogic<String> {
+    public static class TokenIssuanceFlow extends TokenEngine.IssuanceFlow<TokenState> {
 
-        private final String issuer;
-        private final String owner;
-        private final int amount;
+        public TokenIssuanceFlow(String issuer, String owner, long amount) {
+            super(issuer, owner, amount);
+        }
 
-        public TokenIssuanceFlow(String issuer, String owner, int amount) {
-            this.issuer = issuer;
-            this.owner = owner;
-            this.amount = amount;
+        public TokenIssuanceFlow(String issuer, String owner, long amount, String requestKey) {
+            super(issuer, owner, amount, requestKey);
         }
 
-        @Suspendable
         @Override
-        public String call() throws FlowException {
-
-            //Generate accountinfo & AnonymousParty object for transaction
-            AccountInfo issuerAccountInfo = UtilitiesKt.getAccountService(this).accountInfo(issuer).get(0).getState().getData();
-            AccountInfo ownerAccountInfo = UtilitiesKt.getAccountService(this).accountInfo(owner).get(0).getState().getData();
-
-
-            Party issuerAccount = issuerAccountInfo.getHost();
-            Party ownerAccount = ownerAccountInfo.getHost();
-
-            FlowSession ownerSession = initiateFlow(ownerAccountInfo.getHost());
-
-            //grab the notary for transaction building
-            Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-
-            //create a transactionBuilder
-            TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
-            TokenState tokenState = new TokenState(issuerAccount, ownerAccount , amount);
-
-            transactionBuilder.addOutputState(tokenState);
-            transactionBuilder.addCommand(new TokenContract.Commands.Issue() ,
-                    ImmutableList.of(issuerAccount.getOwningKey(), ownerAccount.getOwningKey()));
-
-            transactionBuilder.verify(getServiceHub());
-
-            //sign the transaction with the issuer account hosted on the Initiating node
-            SignedTransaction selfSignedTransaction = getServiceHub().signInitialTransaction(transactionBuilder, issuerAccount.getOwningKey());
-
-
-            //call CollectSignaturesFlow to get the signature from the owner by specifying with issuer key telling CollectSignaturesFlow that issuer has already signed the transaction
-            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(selfSignedTransaction, Collections.singletonList(ownerSession), Collections.singleton(issuerAccount.getOwningKey())));
-
-            //call FinalityFlow for finality
-            SignedTransaction stx = subFlow(new FinalityFlow(fullySignedTx, Collections.singletonList(ownerSession)));
-
-            return "One Token1 State issued to "+owner+ " from " + issuer+ " with amount: "+amount +"\ntxId: "+ stx.getId() ;
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
         }
     }
 
     @InitiatingFlow
     @StartableByRPC
-    public static class TokenSwap extends FlowLogic<String> {
-        private final int amount;
-        private final String owner;
-        private final String newOwner;
+    public static class TokenBatchIssuanceFlow extends TokenEngine.BatchIssuanceFlow<TokenState> {
 
-        public TokenSwap(int amount, String owner, String newOwner) {
-            this.amount = amount;
-            this.owner = owner;
-            this.newOwner = newOwner;
+        public TokenBatchIssuanceFlow(String issuer, List<String> owners, List<Long> amounts, int chunkSize) {
+            super(issuer, owners, amounts, chunkSize);
         }
 
-        @Suspendable
         @Override
-        public String call() throws FlowException {
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
+        }
+    }
 
-            //Generate accountinfo & AnonymousParty object for transaction
-            AccountInfo ownerAccountInfo = UtilitiesKt.getAccountService(this).accountInfo(owner).get(0).getState().getData();
-            AccountInfo newOwnerAccountInfo = UtilitiesKt.getAccountService(this).accountInfo(newOwner).get(0).getState().getData();
+    @InitiatingFlow
+    @StartableByRPC
+    public static class TokenSwap extends TokenEngine.SwapFlow<TokenState> {
 
-            Party ownerAccount = ownerAccountInfo.getHost();
+        public TokenSwap(long amount, String owner, String newOwner) {
+            super(amount, owner, newOwner);
+        }
 
-            FlowSession ownerSession = initiateFlow(ownerAccountInfo.getHost());
+        public TokenSwap(long amount, String owner, String newOwner, String requestKey) {
+            super(amount, owner, newOwner, requestKey);
+        }
 
-            // Get a reference to the notary.
-            Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+        @Override
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
+        }
+    }
 
-            // Get the vault service for querying for the TokenState
-            Vault.Page<TokenState> results = getServiceHub().getVaultService().queryBy(
-                    TokenState.class
-            );
+    @InitiatedBy(TokenFlow.TokenSwap.class)
+    public static class TokenSwapResponder extends TokenEngine.SwapResponder {
 
-            // Check if there are any TokenStates in the vault
-            if (results.getStates().size() == 0) {
-                throw new FlowException("No tokens found in the vault");
-            }
+        public TokenSwapResponder(FlowSession otherSide) {
+            super(otherSide);
+        }
 
-            // Get the first TokenState in the vault
-            StateAndRef<TokenState> tokenStateAndRef = results.getStates().get(0);
-            TokenState tokenState = tokenStateAndRef.getState().getData();
+        @Override
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
+        }
+    }
 
-            // Check that the owner of the token is the one specified in the flow
-            if (!tokenState.getOwner().equals(ownerAccount)) {
-                throw new FlowException("The specified owner is not the owner of the token. owner is: " + tokenState.getOwner().equals(ownerAccount));
-            }
+    @InitiatedBy(TokenFlow.TokenIssuanceFlow.class)
+    public static class TokenIssuanceFlowResponder extends TokenEngine.IssuanceResponder {
 
-            // Check that the specified amount is the same as the amount of the token
-            if (tokenState.getAmount() != amount) {
-                throw new FlowException("The specified amount does not match the amount of the token");
-            }
+        public TokenIssuanceFlowResponder(FlowSession otherSide) {
+            super(otherSide);
+        }
 
-            // Get the keys of the current owner and new owner
-            Party ownerKey = tokenState.getOwner();
-            Party newOwnerKey = newOwnerAccountInfo.getHost();
+        @Override
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
+        }
+    }
 
-            // Create a new transaction builder
-            TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+    @InitiatedBy(TokenFlow.TokenBatchIssuanceFlow.class)
+    public static class TokenBatchIssuanceFlowResponder extends TokenEngine.IssuanceResponder {
 
-            // Create a new TokenState with the new owner
-            TokenState newTokenState = new TokenState(
-                    tokenState.getIssuer(),
-                    newOwnerKey,
-                    tokenState.getAmount()
-            );
+        public TokenBatchIssuanceFlowResponder(FlowSession otherSide) {
+            super(otherSide);
+        }
 
-            // Add the output state to the transaction builder
-            transactionBuilder.addOutputState(newTokenState);
+        @Override
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
+        }
+    }
 
-            // Add a command to the transaction builder to move the token
-            transactionBuilder.addCommand(new TokenContract.Commands.Swap(), ImmutableList.of(ownerKey.getOwningKey(), newOwnerKey.getOwningKey()));
+    @InitiatingFlow
+    @StartableByRPC
+    public static class TokenMerge extends TokenEngine.MergeFlow<TokenState> {
 
-            // Verify the transaction
-            transactionBuilder.verify(getServiceHub());
+        public TokenMerge(String owner, int maxInputs) {
+            super(owner, maxInputs);
+        }
 
-            // Sign the transaction with the owner's key
-            SignedTransaction selfSignedTransaction = getServiceHub().signInitialTransaction(transactionBuilder);
+        @Override
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
+        }
+    }
 
-            //call CollectSignaturesFlow to get the signature from the owner by specifying with issuer key telling CollectSignaturesFlow that issuer has already signed the transaction
-            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(selfSignedTransaction, Collections.singletonList(ownerSession)));
+    @InitiatedBy(TokenFlow.TokenMerge.class)
+    public static class TokenMergeResponder extends TokenEngine.SwapResponder {
 
-            //call FinalityFlow for finality
-            SignedTransaction stx = subFlow(new FinalityFlow(fullySignedTx, Collections.singletonList(ownerSession)));
+        public TokenMergeResponder(FlowSession otherSide) {
+            super(otherSide);
+        }
 
-            return "Token1 swap successful. " + amount + " tokens transferred from " + owner + " to " + newOwner + "\ntxId: "+ stx.getId();
+        @Override
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
         }
     }
 
-    @InitiatedBy(TokenFlow.TokenSwap.class)
-    public static class TokenSwapResponder extends FlowLogic<Void> {
-
-        private final FlowSession otherSide;
+    @StartableByRPC
+    public static class TokenReshard extends TokenEngine.ReshardFlow<TokenState> {
 
-        public TokenSwapResponder(FlowSession otherSide) {
-            this.otherSide = otherSide;
+        public TokenReshard(int batchSize, long minAgeSeconds) {
+            super(batchSize, minAgeSeconds);
         }
 
         @Override
-        @Suspendable
-        public Void call() throws FlowException {
-
-            subFlow(new SignTransactionFlow(otherSide) {
-                @Override
-                protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
-                    // Owner can add Custom Logic to validate transaction.
-                }
-            });
-            subFlow(new ReceiveFinalityFlow(otherSide));
-
-            return null;
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
         }
     }
 
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class TokenReissue extends TokenEngine.ReissueFlow<TokenState> {
 
+        public TokenReissue(String owner, int minDepth, int maxStates) {
+            super(owner, minDepth, maxStates);
+        }
 
-    @InitiatedBy(TokenFlow.TokenIssuanceFlow.class)
-    public static class TokenIssuanceFlowResponder extends FlowLogic<Void> {
+        public TokenReissue(SecureHash exitTxId) {
+            super(exitTxId);
+        }
 
-        private final FlowSession otherSide;
+        @Override
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
+        }
+    }
 
-        public TokenIssuanceFlowResponder(FlowSession otherSide) {
-            this.otherSide = otherSide;
+    @InitiatedBy(TokenFlow.TokenReissue.class)
+    public static class TokenReissueResponder extends TokenEngine.ReissueResponder {
+
+        public TokenReissueResponder(FlowSession otherSide) {
+            super(otherSide);
         }
 
         @Override
-        @Suspendable
-        public Void call() throws FlowException {
-
-            subFlow(new SignTransactionFlow(otherSide) {
-                @Override
-                protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
-                    // Owner can add Custom Logic to validate transaction.
-                }
-            });
-            subFlow(new ReceiveFinalityFlow(otherSide));
-
-            return null;
+        protected TokenDefinition<TokenState> definition() {
+            return Token1Definition.INSTANCE;
         }
     }
 }
@@ -0,0 +1,6 @@
+package bootcamp.token1;
+
+/**
+ * The family of schemas for TokenState.
+ */
+public class TokenSchema { }
@@ -0,0 +1,68 @@
+package bootcamp.token1;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import org.hibernate.annotations.Type;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.util.UUID;
+
+/**
+ * A TokenState schema. Keys are stored in their short string form so swaps and
+ * balance queries can filter on indexed columns instead of scanning the vault.
+ */
+public class TokenSchemaV1 extends MappedSchema {
+
+    public TokenSchemaV1() {
+        super(TokenSchema.class, 1, ImmutableList.of(PersistentToken.class));
+    }
+
+    @Entity
+    @Table(name = "token_states", indexes = {
+            @Index(name = "token_issuer_key_idx", columnList = "issuer_key"),
+            @Index(name = "token_owner_key_idx", columnList = "owner_key"),
+            @Index(name = "token_owner_account_idx", columnList = "owner_account_id"),
+            @Index(name = "token_amount_idx", columnList = "amount")
+    })
+    public static class PersistentToken extends PersistentState {
+        @Column(name = "issuer_key") private final String issuerKey;
+        @Column(name = "owner_key") private final String ownerKey;
+        @Column(name = "owner_account_id") @Type(type = "uuid-char") private final UUID ownerAccountId;
+        @Column(name = "amount") private final long amount;
+
+        public PersistentToken(String issuerKey, String ownerKey, UUID ownerAccountId, long amount) {
+            this.issuerKey = issuerKey;
+            this.ownerKey = ownerKey;
+            this.ownerAccountId = ownerAccountId;
+            this.amount = amount;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentToken() {
+            this.issuerKey = null;
+            this.ownerKey = null;
+            this.ownerAccountId = null;
+            this.amount = 0;
+        }
+
+        public String getIssuerKey() {
+            return issuerKey;
+        }
+
+        public String getOwnerKey() {
+            return ownerKey;
+        }
+
+        public UUID getOwnerAccountId() {
+            return ownerAccountId;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+    }
+}
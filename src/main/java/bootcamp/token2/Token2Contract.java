@@ -1,55 +1,82 @@
 package bootcamp.token2;
 
-import net.corda.core.contracts.*;
+import bootcamp.AccountTokenContract;
+import bootcamp.ExchangeRate;
+import bootcamp.TokenCommand;
+import bootcamp.token1.TokenState;
+import net.corda.core.contracts.CommandWithParties;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.transactions.LedgerTransaction;
+
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
-import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 
-public class Token2Contract implements Contract {
+public class Token2Contract extends AccountTokenContract<Token2State> {
+
+    public Token2Contract() {
+        super(Token2State.class, Token2Contract.Commands.class);
+    }
 
     @Override
     public void verify(LedgerTransaction tx) throws IllegalArgumentException {
-        CommandWithParties<Token2Contract.Commands> command = requireSingleCommand(tx.getCommands(), Token2Contract.Commands.class);
-
-        List<ContractState> inputs = tx.getInputStates();
-        List<ContractState> outputs = tx.getOutputStates();
-
-        if (command.getValue() instanceof Token2Contract.Commands.Issue) {
-            requireThat(req -> {
-                req.using("Transaction must have no input states.", inputs.isEmpty());
-                req.using("Transaction must have exactly one output.", outputs.size() == 1);
-                req.using("Output must be a TokenState.", outputs.get(0) instanceof Token2State);
-                Token2State output = (Token2State) outputs.get(0);
-                req.using("Issuer Account must be required singer.", command.getSigners().contains(output.getIssuer().getOwningKey()));
-                req.using("Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
-                req.using("Amount must be positive.", output.getAmount() > 0);
-                return null;
-            });
-        }
+        super.verify(tx);
 
-        else if (command.getValue() instanceof Token2Contract.Commands.Swap) {
-            requireThat(req -> {
-                req.using("Transaction must have no input states.", inputs.isEmpty());
-                req.using("Transaction must have exactly one output.", outputs.size() == 1);
-                req.using("Output must be a TokenState.", outputs.get(0) instanceof Token2State);
-                Token2State output = (Token2State) outputs.get(0);
-                req.using("New Owner Account must be required singer.", command.getSigners().contains(output.getOwner().getOwningKey()));
-                req.using("Amount must be positive.", output.getAmount() > 0);
-                return null;
-            });
-        } else {
-            throw new IllegalArgumentException("Unrecognized command");
-        }
+        // An exchange quoted by the oracle must pay out Token2 at its rate; Token2 is the quote side so the rule lives here
+        List<CommandWithParties<ExchangeRate>> rates = tx.commandsOfType(ExchangeRate.class);
+        if (rates.isEmpty()) return;
+        requireThat(req -> {
+            req.using("Transaction must carry at most one exchange rate.", rates.size() == 1);
+            req.using("Exchange rate must come with an Exchange.", !tx.commandsOfType(Commands.Exchange.class).isEmpty());
+            ExchangeRate rate = rates.get(0).getValue();
+            req.using("Exchange rate must be positive.", rate.getRate().signum() > 0);
+            req.using("Exchange rate must be signed by its oracle alone.",
+                    rates.get(0).getSigners().equals(Collections.singletonList(rate.getOracle().getOwningKey())));
+            req.using("Exchange rate must price TokenState inputs.", !tx.inputsOfType(TokenState.class).isEmpty());
+            req.using("Exchange rate must price Token2State inputs.", !tx.inputsOfType(Token2State.class).isEmpty());
+            // What each seller pays the other, change going back to the sellers is not priced
+            UUID token1Seller = tx.inputsOfType(TokenState.class).get(0).getOwnerAccountId();
+            UUID token2Seller = tx.inputsOfType(Token2State.class).get(0).getOwnerAccountId();
+            long token1Amount = 0;
+            for (TokenState output : tx.outputsOfType(TokenState.class)) {
+                if (output.getOwnerAccountId().equals(token2Seller)) token1Amount += output.getAmount();
+            }
+            long token2Amount = 0;
+            for (Token2State output : tx.outputsOfType(Token2State.class)) {
+                if (output.getOwnerAccountId().equals(token1Seller)) token2Amount += output.getAmount();
+            }
+            req.using("Token2 amount must follow the exchange rate.", token2Amount == rate.token2For(token1Amount));
+            return null;
+        });
     }
 
-    public interface Commands extends CommandData {
-        class Issue implements Commands { }
+    public interface Commands extends TokenCommand {
+        class Issue implements Commands, TokenCommand.Issue { }
+
+        class Swap implements Commands, TokenCommand.Swap {}
 
-        class Swap implements Commands {}
+        class Exchange implements Commands, TokenCommand.Exchange {}
+
+        class Settle implements Commands, TokenCommand.Settle {}
+
+        class Exit implements Commands, TokenCommand.Exit {}
+
+        class Reissue implements Commands, TokenCommand.Reissue {
+            private final SecureHash exitTxId;
+
+            public Reissue(SecureHash exitTxId) {
+                this.exitTxId = exitTxId;
+            }
+
+            @Override
+            public SecureHash getExitTxId() {
+                return exitTxId;
+            }
+        }
 
         //class Transfer implements Commands{}
 
     }
-}
\ No newline at end of file
+}
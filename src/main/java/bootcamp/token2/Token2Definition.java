@@ -0,0 +1,73 @@
+package bootcamp.token2;
+
+import bootcamp.TokenDefinition;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.schemas.PersistentState;
+
+import java.util.UUID;
+
+public class Token2Definition implements TokenDefinition<Token2State> {
+
+    public static final Token2Definition INSTANCE = new Token2Definition();
+
+    private Token2Definition() { }
+
+    @Override
+    public String getName() {
+        return "Token2";
+    }
+
+    @Override
+    public Class<Token2State> getStateClass() {
+        return Token2State.class;
+    }
+
+    @Override
+    public Class<? extends PersistentState> getSchemaClass() {
+        return Token2SchemaV1.PersistentToken2.class;
+    }
+
+    @Override
+    public Token2State create(Party issuer, AbstractParty owner, UUID ownerAccountId, long amount) {
+        return new Token2State(issuer, owner, ownerAccountId, amount);
+    }
+
+    @Override
+    public CommandData issueCommand() {
+        return new Token2Contract.Commands.Issue();
+    }
+
+    @Override
+    public CommandData swapCommand() {
+        return new Token2Contract.Commands.Swap();
+    }
+
+    @Override
+    public CommandData exchangeCommand() {
+        return new Token2Contract.Commands.Exchange();
+    }
+
+    @Override
+    public CommandData settleCommand() {
+        return new Token2Contract.Commands.Settle();
+    }
+
+    @Override
+    public CommandData exitCommand() {
+        return new Token2Contract.Commands.Exit();
+    }
+
+    @Override
+    public CommandData reissueCommand(SecureHash exitTxId) {
+        return new Token2Contract.Commands.Reissue(exitTxId);
+    }
+
+    @Override
+    public FlowLogic<String> reissueFlow(String owner, int minDepth, int maxStates) {
+        return new Token2Flow.Token2Reissue(owner, minDepth, maxStates);
+    }
+}
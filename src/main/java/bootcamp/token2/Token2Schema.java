@@ -0,0 +1,6 @@
+package bootcamp.token2;
+
+/**
+ * The family of schemas for Token2State.
+ */
+public class Token2Schema { }
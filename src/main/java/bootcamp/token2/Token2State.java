@@ -1,36 +1,52 @@
 package bootcamp.token2;
 
+import bootcamp.AccountToken;
 import com.google.common.collect.ImmutableList;
 import net.corda.core.contracts.BelongsToContract;
-import net.corda.core.contracts.ContractState;
+import net.corda.core.crypto.CryptoUtils;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
+import java.util.UUID;
 
 @BelongsToContract(Token2Contract.class)
-public class Token2State implements ContractState{
+public class Token2State implements AccountToken, QueryableState {
 
     private final Party issuer;
-    private final Party owner;
-    private final int amount;
+    // An anonymous key of the owner account, so only that account can spend the state
+    private final AbstractParty owner;
+    private final UUID ownerAccountId;
+    private final long amount;
 
-    public Token2State(Party issuer, Party owner, int amount) {
+    public Token2State(Party issuer, AbstractParty owner, UUID ownerAccountId, long amount) {
         this.issuer = issuer;
         this.owner = owner;
+        this.ownerAccountId = ownerAccountId;
         this.amount = amount;
     }
 
+    @Override
     public Party getIssuer() {
         return issuer;
     }
 
-    public Party getOwner() {
+    @Override
+    public AbstractParty getOwner() {
         return owner;
     }
 
-    public int getAmount() {
+    @Override
+    public UUID getOwnerAccountId() {
+        return ownerAccountId;
+    }
+
+    @Override
+    public long getAmount() {
         return amount;
     }
 
@@ -39,4 +55,24 @@ public class Token2State implements ContractState{
     public List<AbstractParty> getParticipants() {
         return ImmutableList.of(issuer,owner);
     }
-}
\ No newline at end of file
+
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull MappedSchema schema) {
+        if (schema instanceof Token2SchemaV1) {
+            return new Token2SchemaV1.PersistentToken2(
+                    CryptoUtils.toStringShort(issuer.getOwningKey()),
+                    CryptoUtils.toStringShort(owner.getOwningKey()),
+                    ownerAccountId,
+                    amount);
+        } else {
+            throw new IllegalArgumentException("Unrecognised schema " + schema);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return ImmutableList.of(new Token2SchemaV1());
+    }
+}
@@ -0,0 +1,147 @@
+package bootcamp;
+
+import bootcamp.token1.TokenFlow;
+import bootcamp.token2.Token2Flow;
+import bootcamp.token2.Token2State;
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.ReceiveStateAndRefFlow;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CrossTokenSwapFlowTest {
+
+    private static final CordaX500Name ORACLE = new CordaX500Name("Oracle", "London", "GB");
+
+    private MockNetwork network;
+    private StartedMockNode partyA;
+    private StartedMockNode partyB;
+    private StartedMockNode oracle;
+
+    @Before
+    public void setup() throws Exception {
+        network = new MockNetwork(new MockNetworkParameters()
+                .withThreadPerNode(true)
+                .withNetworkSendManuallyPumped(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("bootcamp").withConfig(ImmutableMap.of("exchangeRateOracle", ORACLE.toString())),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.ci"))));
+        partyA = network.createNode(new CordaX500Name("PartyA", "London", "GB"));
+        partyB = network.createNode(new CordaX500Name("PartyB", "New York", "US"));
+        oracle = network.createNode(ORACLE);
+
+        partyA.startFlow(new CreateAndShareAccountFlow("issuer-a", ImmutableList.of(party(partyB)))).get();
+        partyA.startFlow(new CreateAndShareAccountFlow("alice", ImmutableList.of(party(partyB)))).get();
+        partyB.startFlow(new CreateAndShareAccountFlow("issuer-b", ImmutableList.of(party(partyA)))).get();
+        partyB.startFlow(new CreateAndShareAccountFlow("bob", ImmutableList.of(party(partyA)))).get();
+        partyA.startFlow(new TokenFlow.TokenIssuanceFlow("issuer-a", "alice", 100)).get();
+        partyB.startFlow(new Token2Flow.Token2IssuanceFlow("issuer-b", "bob", 1000)).get();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @Test
+    public void counterpartyRefusesLopsidedProposal() throws Exception {
+        try {
+            partyA.startFlow(new LopsidedExchange("alice", "bob", party(oracle))).get();
+            fail("Counterparty handed over its Token2 for a single Token1");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FlowException);
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("is not the price"));
+        }
+        assertEquals(1000L, token2Balance("bob"));
+    }
+
+    @Test
+    public void pricedExchangeReturnsChangeToBothSellers() throws Exception {
+        partyA.startFlow(new CrossTokenSwapFlow("alice", 10, "bob", party(oracle))).get();
+
+        long paid = 1000L - token2Balance("bob");
+        assertTrue("Exchange paid " + paid + " Token2", paid > 0);
+        assertEquals(90L, balance(partyA, "alice", "Token1"));
+        assertEquals(paid, balance(partyA, "alice", "Token2"));
+        assertEquals(10L, balance(partyB, "bob", "Token1"));
+    }
+
+    @Test
+    public void unpricedExchangeWithAnotherNodeIsRefused() throws Exception {
+        try {
+            partyA.startFlow(new CrossTokenSwapFlow("alice", 10, "bob", 1000)).get();
+            fail("Unpriced exchange with an account on another node went ahead");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FlowException);
+        }
+        assertEquals(1000L, token2Balance("bob"));
+    }
+
+    private long token2Balance(String account) throws Exception {
+        return balance(partyB, account, "Token2");
+    }
+
+    private static long balance(StartedMockNode node, String account, String token) throws Exception {
+        Map<String, Map<String, Long>> balances = node.startFlow(new QueryBalanceByAccount(ImmutableList.of(account))).get();
+        return balances.getOrDefault(account, ImmutableMap.of()).getOrDefault(token, 0L);
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    /**
+     * Speaks the initiator's side of CrossTokenSwapFlow with a genuine oracle rate, but asks for
+     * all of account2's Token2 for one Token1.
+     */
+    public static class LopsidedExchange extends CrossTokenSwapFlow {
+
+        private final String account2;
+        private final Party oracleParty;
+
+        public LopsidedExchange(String account1, String account2, Party oracle) {
+            super(account1, 1, account2, oracle);
+            this.account2 = account2;
+            this.oracleParty = oracle;
+        }
+
+        @Override
+        @Suspendable
+        public String call() throws FlowException {
+            AccountInfo account2Info = getServiceHub().cordaService(AccountCacheService.class).accountInfo(account2).getState().getData();
+            ExchangeRate rate = subFlow(new ExchangeRateFlow.Query(oracleParty));
+            FlowSession session = initiateFlow(account2Info.getHost());
+            session.send(true);
+            session.send(account2Info.getIdentifier().getId());
+            session.send(1000L);
+            session.send(1L);
+            session.send(rate);
+            session.send(getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0));
+            List<StateAndRef<Token2State>> received = subFlow(new ReceiveStateAndRefFlow<>(session));
+            return "Received " + received.size() + " Token2 states";
+        }
+    }
+}